@@ -0,0 +1,105 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+import models.LibraryRecord;
+import models.User;
+import server.RecordStore;
+import server.UserDirectory;
+
+/**
+ * BenchmarkData - Builds users and records for the benchmarks
+ * Data is generated the same way for every benchmark so their numbers can
+ * be compared: user i has email user{i}@example.com and ID G{i}, every
+ * fifth record is a book entry created by a librarian, the rest are borrow
+ * requests spread evenly over the users, and one request in eight has
+ * been assigned to a librarian.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+final class BenchmarkData {
+
+    static final int LIBRARIANS = 10;
+    private static final int BATCH = 10_000;
+
+    private BenchmarkData() {
+    }
+
+    static String email(int user) {
+        return "user" + user + "@example.com";
+    }
+
+    static String userId(int user) {
+        return "G" + user;
+    }
+
+    static String recordId(int record) {
+        return "REC" + record;
+    }
+
+    static UserDirectory users(int count) {
+        UserDirectory users = new UserDirectory();
+        for (int i = 0; i < count; i++) {
+            users.register(user(i));
+        }
+        return users;
+    }
+
+    static User user(int i) {
+        return new User("User " + i, userId(i), email(i), "password" + i, "Computing", User.Role.STUDENT);
+    }
+
+    // Fill a store with records created by users 0..users-1 - assignments are applied without a log
+    static void fill(RecordStore store, int records, int users) throws IOException {
+        List<LibraryRecord> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < records; i++) {
+            batch.add(record(i, users));
+            if (batch.size() == BATCH || i == records - 1) {
+                store.addAll(batch);
+                batch.clear();
+            }
+        }
+        for (int i = 1; i < records; i += 10) {
+            store.assign(recordId(i), "LIB" + (i % LIBRARIANS), Runnable::run);
+        }
+    }
+
+    static LibraryRecord record(int i, int users) {
+        if (i % 5 == 0) {
+            return new LibraryRecord(recordId(i), "LIB" + (i % LIBRARIANS), "Title " + i, "Author " + (i % 1000),
+                    String.format("978%010d", i));
+        }
+        return new LibraryRecord(recordId(i), userId(i % Math.max(1, users)));
+    }
+
+    static Path tempDirectory() throws IOException {
+        return Files.createTempDirectory("library-bench");
+    }
+
+    static void delete(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,51 @@
+package benchmarks;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * BenchmarkMain - Runs the benchmarks once for each thread count
+ * JMH takes a single thread count per run, so this runs the chosen
+ * benchmarks at 1, 4 and 16 threads in turn. Usage:
+ *
+ *   java benchmarks.BenchmarkMain [benchmark regex] [threads,...] [name=value,... params]
+ *
+ * e.g. java benchmarks.BenchmarkMain RecordStore 1,8 records=1000,100000 storage=segments
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = "benchmarks\\..*Benchmark";
+        int[] threadCounts = { 1, 4, 16 };
+        ChainedOptionsBuilder params = new OptionsBuilder();
+
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                params.param(arg.substring(0, equals), arg.substring(equals + 1).split(","));
+            } else if (arg.matches("[0-9,]+")) {
+                String[] counts = arg.split(",");
+                threadCounts = new int[counts.length];
+                for (int i = 0; i < counts.length; i++) {
+                    threadCounts[i] = Integer.parseInt(counts[i]);
+                }
+            } else {
+                include = arg;
+            }
+        }
+
+        for (int threads : threadCounts) {
+            System.out.println("\n=== " + threads + " THREAD(S) ===");
+            new Runner(new OptionsBuilder()
+                    .parent(params.build())
+                    .include(include)
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
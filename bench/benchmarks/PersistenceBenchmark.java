@@ -0,0 +1,116 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import models.User;
+import server.ModelCodec;
+import server.RecordStore;
+import server.UserDirectory;
+
+/**
+ * PersistenceBenchmark - The steps of Provider.saveData and loadData
+ * Provider keeps its data in static fields and its files in the working
+ * directory, so it cannot be pointed at a scratch directory. These
+ * benchmarks run the same steps on their own data instead: saveData writes
+ * the users snapshot with an fsync and checkpoints the record segments;
+ * loadData reads the users back into a directory and reopens the segments.
+ * Each call is one whole save or load, timed on its own. Reopening is part
+ * of what loadData measures, so it opens a new store every call; that store
+ * is closed after the call, outside the timing.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx16g" })
+public class PersistenceBenchmark {
+
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int users;
+
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int records;
+
+    private Path directory;
+    private UserDirectory userDirectory;
+    private RecordStore store;
+    private RecordStore loadedStore;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkData.tempDirectory();
+        userDirectory = BenchmarkData.users(users);
+        store = RecordStore.open(directory);
+        BenchmarkData.fill(store, records, users);
+        saveData();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeLoadedStore() throws IOException {
+        if (loadedStore != null) {
+            loadedStore.close();
+            loadedStore = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        store = null;
+        BenchmarkData.delete(directory);
+    }
+
+    @Benchmark
+    public void saveData() throws IOException {
+        Path target = directory.resolve("users.dat");
+        Path temp = directory.resolve("users.dat.tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+             BufferedOutputStream out = new BufferedOutputStream(fos)) {
+            ModelCodec.writeUsers(out, userDirectory.snapshot());
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        store.checkpoint();
+    }
+
+    @Benchmark
+    public void loadData(Blackhole blackhole) throws IOException {
+        UserDirectory loaded = new UserDirectory();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(directory.resolve("users.dat")))) {
+            for (User user : ModelCodec.readUsers(in)) {
+                loaded.register(user);
+            }
+        }
+        blackhole.consume(loaded);
+        loadedStore = RecordStore.open(directory);
+        blackhole.consume(loadedStore);
+    }
+}
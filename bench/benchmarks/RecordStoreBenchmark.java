@@ -0,0 +1,103 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import models.LibraryRecord;
+import server.RecordIdAllocator;
+import server.RecordStore;
+
+/**
+ * RecordStoreBenchmark - The record operations behind the session menus
+ * Runs against a heap-only store and one backed by mapped segment files,
+ * as the server uses. There is one user for every ten records.
+ * createBorrowRequest adds records as it runs, so the store grows by the
+ * number of operations measured.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx16g" })
+public class RecordStoreBenchmark {
+
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int records;
+
+    @Param({ "heap", "segments" })
+    public String storage;
+
+    private RecordStore store;
+    private RecordIdAllocator recordIds;
+    private Path directory;
+    private int users;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkData.tempDirectory();
+        store = storage.equals("segments") ? RecordStore.open(directory) : new RecordStore();
+        users = Math.max(1, records / 10);
+        BenchmarkData.fill(store, records, users);
+        recordIds = new RecordIdAllocator(directory.resolve("record-ids.lease"), 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        store = null;
+        BenchmarkData.delete(directory);
+    }
+
+    // Assign and the listings start with a lookup by record ID
+    @Benchmark
+    public LibraryRecord getById() {
+        return store.get(BenchmarkData.recordId(ThreadLocalRandom.current().nextInt(records)));
+    }
+
+    // "View My Records" - everything one student has created
+    @Benchmark
+    public List<LibraryRecord> findByCreator() {
+        return store.findByCreator(BenchmarkData.userId(ThreadLocalRandom.current().nextInt(users)));
+    }
+
+    // "View My Records" as the session shows it - the first page only
+    @Benchmark
+    public RecordStore.Page firstPageByCreator() {
+        String userId = BenchmarkData.userId(ThreadLocalRandom.current().nextInt(users));
+        return store.page(RecordStore.View.CREATED_BY, userId, null, 10);
+    }
+
+    // "Assign Borrow Request" - the list of unassigned requests
+    @Benchmark
+    public List<LibraryRecord> findPendingRequests() {
+        return store.findPendingRequests();
+    }
+
+    // "Create Borrow Request" - a new ID and an insert into every index
+    @Benchmark
+    public boolean createBorrowRequest() {
+        String userId = BenchmarkData.userId(ThreadLocalRandom.current().nextInt(users));
+        return store.add(new LibraryRecord(recordIds.next("REQ"), userId));
+    }
+}
@@ -0,0 +1,73 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import models.User;
+import server.UserDirectory;
+
+/**
+ * UserDirectoryBenchmark - The user lookups behind login and registration
+ * Login finds a user by email; registration checks that the ID and email
+ * are free, which for a new user means a lookup that misses.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx16g" })
+public class UserDirectoryBenchmark {
+
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int users;
+
+    private UserDirectory directory;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        directory = BenchmarkData.users(users);
+    }
+
+    // Login - email of an existing user, in a different case
+    @Benchmark
+    public User findByEmail() {
+        int user = ThreadLocalRandom.current().nextInt(users);
+        return directory.findByEmail("USER" + user + "@example.com");
+    }
+
+    // Registration - an email nobody has
+    @Benchmark
+    public boolean isEmailTakenMiss() {
+        int user = users + ThreadLocalRandom.current().nextInt(users);
+        return directory.isEmailTaken(BenchmarkData.email(user));
+    }
+
+    // Registration - an ID nobody has
+    @Benchmark
+    public boolean isIdTakenMiss() {
+        int user = users + ThreadLocalRandom.current().nextInt(users);
+        return directory.isIdTaken(BenchmarkData.userId(user));
+    }
+
+    @Benchmark
+    public User findById() {
+        return directory.findById(BenchmarkData.userId(ThreadLocalRandom.current().nextInt(users)));
+    }
+}
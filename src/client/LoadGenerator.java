@@ -0,0 +1,445 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import metrics.LatencyHistogram;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.Opcode;
+
+/**
+ * LoadGenerator - Headless load test for the library server
+ * Runs many simulated students and librarians at once, each on its own
+ * connection, speaking the same protocol as the interactive client. Every
+ * simulated user registers, logs in, then picks weighted actions with a
+ * random think time between them until the run ends. The time from an
+ * action's first input to the menu coming back is recorded per action.
+ *
+ * Started with: java client.Requester --load [workload.properties] [key=value ...]
+ * The workload is a properties file; key=value arguments override it.
+ *
+ *   host=localhost          port=2004
+ *   connections=20          librarians=2       (how many of the connections)
+ *   duration=30             rampUp=5           (seconds)
+ *   think.min=100           think.max=500      (milliseconds)
+ *   student.borrow=40       student.view=40    student.login=15    student.register=5
+ *   librarian.assign=45     librarian.view=45  librarian.login=10
+ *
+ * Weights are relative; an action a role cannot do is ignored. login logs
+ * out and back in, register signs up a new account and then logs back in.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class LoadGenerator {
+
+    private static final String PASSWORD = "load-test";
+
+    // What a simulated user can do
+    enum Action {
+        REGISTER,
+        LOGIN,
+        BORROW,
+        ASSIGN,
+        VIEW;
+
+        String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // Results for one action
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+    }
+
+    // One step of an action - false if the server reported a failure
+    private interface Step {
+        boolean run() throws IOException;
+    }
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int librarians;
+    private final long durationMillis;
+    private final long rampUpMillis;
+    private final long thinkMin;
+    private final long thinkMax;
+    private final int[] studentWeights = new int[Action.values().length];
+    private final int[] librarianWeights = new int[Action.values().length];
+
+    private final Map<Action, Stats> stats = new EnumMap<>(Action.class);
+    private final LongAdder connectionFailures = new LongAdder();
+    private final AtomicInteger extraAccounts = new AtomicInteger();
+
+    // Makes this run's user IDs and emails different from earlier runs
+    private final String runTag = Long.toString(System.currentTimeMillis() % 1_000_000_000L, 36).toUpperCase(Locale.ROOT);
+    private volatile long deadline;
+
+    LoadGenerator(Properties workload) {
+        host = workload.getProperty("host", "localhost");
+        port = intOf(workload, "port", 2004);
+        connections = Math.max(1, intOf(workload, "connections", 20));
+        librarians = Math.min(connections, Math.max(0, intOf(workload, "librarians", 2)));
+        durationMillis = intOf(workload, "duration", 30) * 1000L;
+        rampUpMillis = intOf(workload, "rampUp", 5) * 1000L;
+        thinkMin = Math.max(0, intOf(workload, "think.min", 100));
+        thinkMax = Math.max(thinkMin, intOf(workload, "think.max", 500));
+
+        int[] studentDefaults = { 5, 15, 40, 0, 40 };
+        int[] librarianDefaults = { 0, 10, 0, 45, 45 };
+        for (Action action : Action.values()) {
+            int i = action.ordinal();
+            studentWeights[i] = action == Action.ASSIGN ? 0
+                    : Math.max(0, intOf(workload, "student." + action.key(), studentDefaults[i]));
+            librarianWeights[i] = action == Action.BORROW ? 0
+                    : Math.max(0, intOf(workload, "librarian." + action.key(), librarianDefaults[i]));
+            stats.put(action, new Stats());
+        }
+    }
+
+    // Entry point for Requester --load
+    public static void run(String[] args) {
+        Properties workload = new Properties();
+        try {
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (equals > 0) {
+                    workload.setProperty(arg.substring(0, equals).trim(), arg.substring(equals + 1).trim());
+                } else {
+                    Properties file = new Properties();
+                    try (Reader reader = Files.newBufferedReader(Paths.get(arg), StandardCharsets.UTF_8)) {
+                        file.load(reader);
+                    }
+                    // Settings given on the command line win over the file
+                    for (String name : file.stringPropertyNames()) {
+                        if (!workload.containsKey(name)) {
+                            workload.setProperty(name, file.getProperty(name));
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading workload: " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error in workload: " + e.getMessage());
+            return;
+        }
+
+        try {
+            new LoadGenerator(workload).start();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void start() throws InterruptedException {
+        System.out.println("===========================================");
+        System.out.println(" Library Management System - Load Test");
+        System.out.println(" Server: " + host + ":" + port);
+        System.out.println(" Connections: " + connections + " (" + librarians + " librarians)");
+        System.out.println(" Duration: " + durationMillis / 1000 + " s after " + rampUpMillis / 1000 + " s ramp-up");
+        System.out.println(" Think time: " + thinkMin + "-" + thinkMax + " ms");
+        System.out.println("===========================================");
+
+        long start = System.nanoTime();
+        deadline = System.currentTimeMillis() + rampUpMillis + durationMillis;
+        try (ExecutorService users = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < connections; i++) {
+                int user = i;
+                long delay = rampUpMillis * i / connections;
+                users.execute(() -> simulateUser(user, user < librarians, delay));
+            }
+
+            // Progress every few seconds until the run is over
+            while (System.currentTimeMillis() < deadline) {
+                Thread.sleep(Math.min(5000, Math.max(1, deadline - System.currentTimeMillis())));
+                long done = 0;
+                for (Stats s : stats.values()) {
+                    done += s.latency.getCount();
+                }
+                System.out.printf("%6.1f s  %d actions%n", (System.nanoTime() - start) / 1e9, done);
+            }
+        }
+        report(System.nanoTime() - start);
+    }
+
+    // One simulated user on one connection
+    private void simulateUser(int user, boolean librarian, long delay) {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        String id = (librarian ? "LIB" : "G") + runTag + "-" + user;
+        String email = "load-" + runTag + "-" + user + "@example.com";
+        int[] weights = librarian ? librarianWeights : studentWeights;
+
+        try (Conversation conversation = new Conversation(host, port)) {
+            if (!timed(Action.REGISTER, () -> register(conversation, id, email, librarian))
+                    || !timed(Action.LOGIN, () -> login(conversation, email))) {
+                return;
+            }
+
+            // Stop if we end up logged out - the menus would no longer match the script
+            boolean loggedIn = true;
+            while (loggedIn && System.currentTimeMillis() < deadline && !conversation.closed) {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(thinkMin, thinkMax + 1));
+                Action action = pick(weights);
+                if (action == null) {
+                    break;
+                }
+                switch (action) {
+                case REGISTER:
+                    // Sign up someone new, then come back as ourselves
+                    conversation.send("8");
+                    int extra = extraAccounts.incrementAndGet();
+                    timed(Action.REGISTER, () -> register(conversation, id + "-" + extra,
+                            "load-" + runTag + "-" + user + "-" + extra + "@example.com", librarian));
+                    loggedIn = timed(Action.LOGIN, () -> login(conversation, email));
+                    break;
+                case LOGIN:
+                    conversation.send("8");
+                    loggedIn = timed(Action.LOGIN, () -> login(conversation, email));
+                    break;
+                case BORROW:
+                    timed(Action.BORROW, () -> succeeded(conversation.send("3")));
+                    break;
+                case ASSIGN:
+                    assign(conversation);
+                    break;
+                case VIEW:
+                    String option = librarian && ThreadLocalRandom.current().nextBoolean() ? "4" : "6";
+                    timed(Action.VIEW, () -> view(conversation, option));
+                    break;
+                }
+            }
+            if (!conversation.closed) {
+                conversation.send(loggedIn ? "9" : "3");
+            }
+        } catch (IOException e) {
+            connectionFailures.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean register(Conversation conversation, String id, String email, boolean librarian) throws IOException {
+        conversation.send("1");
+        conversation.send("Load " + id);
+        conversation.send(id);
+        conversation.send(email);
+        conversation.send(PASSWORD);
+        conversation.send("Load Testing");
+        return succeeded(conversation.send(librarian ? "2" : "1"));
+    }
+
+    private boolean login(Conversation conversation, String email) throws IOException {
+        conversation.send("2");
+        conversation.send(email);
+        return succeeded(conversation.send(PASSWORD));
+    }
+
+    // Pick a listed request at random - when there is none nothing is assigned, so nothing is timed
+    private void assign(Conversation conversation) throws IOException {
+        long start = System.nanoTime();
+        List<String> screen = conversation.send("5");
+        List<String> pending = new ArrayList<>();
+        for (String line : screen) {
+            String text = line.trim();
+            if (text.startsWith("[") && text.endsWith("]")) {
+                pending.add(text.substring(1, text.length() - 1));
+            }
+        }
+        if (pending.isEmpty()) {
+            stats.get(Action.ASSIGN).skipped.increment();
+            return;
+        }
+        String recordId = pending.get(ThreadLocalRandom.current().nextInt(pending.size()));
+        boolean ok = succeeded(conversation.send(recordId));
+        record(Action.ASSIGN, start, ok);
+    }
+
+    // Open a listing and leave it again if it has more than one page
+    private boolean view(Conversation conversation, String option) throws IOException {
+        List<String> screen = conversation.send(option);
+        if (conversation.prompt.endsWith("Q=Back to menu:")) {
+            screen = conversation.send("Q");
+        }
+        for (String line : screen) {
+            if (line.startsWith("ERROR")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean timed(Action action, Step step) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = step.run();
+        record(action, start, ok);
+        return ok;
+    }
+
+    private void record(Action action, long startNanos, boolean ok) {
+        Stats s = stats.get(action);
+        s.latency.recordSince(startNanos);
+        if (!ok) {
+            s.errors.increment();
+        }
+    }
+
+    private static boolean succeeded(List<String> screen) {
+        for (String line : screen) {
+            if (line.startsWith("SUCCESS")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Action pick(int[] weights) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        if (total == 0) {
+            return null;
+        }
+        int roll = ThreadLocalRandom.current().nextInt(total);
+        for (Action action : Action.values()) {
+            roll -= weights[action.ordinal()];
+            if (roll < 0) {
+                return action;
+            }
+        }
+        return null;
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("\n=== LOAD TEST RESULTS ===");
+        System.out.printf("%-10s %8s %7s %8s %9s %9s %9s %9s %9s %9s%n",
+                "Action", "Count", "Errors", "Ops/s", "Mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "Max ms");
+        long total = 0;
+        long errors = 0;
+        for (Action action : Action.values()) {
+            Stats s = stats.get(action);
+            LatencyHistogram latency = s.latency;
+            long count = latency.getCount();
+            if (count == 0 && s.skipped.sum() == 0) {
+                continue;
+            }
+            total += count;
+            errors += s.errors.sum();
+            System.out.printf("%-10s %8d %7d %8.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    action.key(), count, s.errors.sum(), count / seconds, latency.getMeanNanos() / 1e6,
+                    latency.getPercentileNanos(50) / 1e6, latency.getPercentileNanos(90) / 1e6,
+                    latency.getPercentileNanos(99) / 1e6, latency.getPercentileNanos(99.9) / 1e6,
+                    latency.getMaxNanos() / 1e6);
+            if (s.skipped.sum() > 0) {
+                System.out.println("           " + s.skipped.sum() + " skipped - nothing was pending");
+            }
+        }
+        System.out.printf("Total: %d actions in %.1f s (%.1f/s), %d errors, %d connection failures%n",
+                total, seconds, total / seconds, errors, connectionFailures.sum());
+    }
+
+    private static int intOf(Properties workload, String name, int defaultValue) {
+        String value = workload.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a whole number, got " + value);
+        }
+    }
+
+    // A connection to the server, answering one prompt at a time
+    private static final class Conversation implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        // The last prompt the server sent, and whether it has ended the session
+        String prompt = "";
+        boolean closed = false;
+
+        Conversation(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            FrameCodec.write(out, Frame.of(Opcode.HELLO, String.valueOf(FrameCodec.VERSION)));
+            out.flush();
+            Frame hello = FrameCodec.read(in);
+            if (hello.getOpcode() != Opcode.HELLO) {
+                throw new IOException("Server refused connection: " + hello.getText());
+            }
+            readScreen();
+        }
+
+        // Answer the current prompt and return the screen that comes back
+        List<String> send(String input) throws IOException {
+            FrameCodec.write(out, Frame.of(Opcode.INPUT, input));
+            out.flush();
+            return readScreen();
+        }
+
+        private List<String> readScreen() throws IOException {
+            List<String> screen = new ArrayList<>();
+            while (true) {
+                Frame frame = FrameCodec.read(in);
+                switch (frame.getOpcode()) {
+                case MESSAGE:
+                    screen.addAll(frame.getFields());
+                    break;
+                case PROMPT:
+                    screen.addAll(frame.getFields());
+                    prompt = screen.isEmpty() ? "" : screen.get(screen.size() - 1);
+                    return screen;
+                case CLOSE:
+                    closed = true;
+                    return screen;
+                case ERROR:
+                    throw new IOException(frame.getText());
+                default:
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
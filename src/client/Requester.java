@@ -1,25 +1,45 @@
 package client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.Scanner;
 
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.Opcode;
+
 // Client application that connects to the library management server
 public class Requester {
     
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 2004;
     
+    // After a dropped connection, try this many times, waiting a little longer each time
+    private static final int RECONNECT_ATTEMPTS = 5;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    
     private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private DataOutputStream out;
+    private DataInputStream in;
     private Scanner scanner;
     
+    // Token of our login - offered when reconnecting so the server can skip the login
+    private String sessionToken;
+    
     public static void main(String[] args) {
+        // Headless load test: --load [workload.properties] [key=value ...]
+        if (args.length > 0 && args[0].equals("--load")) {
+            LoadGenerator.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
         System.out.println("===========================================");
         System.out.println(" Library Management System - Client");
         System.out.println(" Connecting to server...");
@@ -31,14 +51,10 @@ public class Requester {
     
     public void start() {
         try {
-            // Connect to server
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            System.out.println("Connected to server at " + SERVER_ADDRESS + ":" + SERVER_PORT);
-            
-            // Set up streams (output first, then input)
-            out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
-            in = new ObjectInputStream(socket.getInputStream());
+            // Connect to server and agree on the protocol version
+            if (!connect()) {
+                return;
+            }
             
             // Set up scanner for user input
             scanner = new Scanner(System.in);
@@ -49,29 +65,44 @@ public class Requester {
             boolean running = true;
             while (running) {
                 try {
-                    // Receive message from server
-                    String serverMessage = (String) in.readObject();
-                    System.out.println(serverMessage);
+                    // Receive frame from server
+                    Frame frame = FrameCodec.read(in);
                     
-                    // Check if server is asking for input (ends with ":")
-                    if (serverMessage.endsWith(":")) {
-                        // Get user input and send to server
+                    switch (frame.getOpcode()) {
+                    case MESSAGE:
+                        printLines(frame);
+                        break;
+                    case PROMPT:
+                        // Server is asking for input - show the screen, then send the reply back
+                        printLines(frame);
                         String userInput = scanner.nextLine();
-                        out.writeObject(userInput);
-                        out.flush();
+                        send(Frame.of(Opcode.INPUT, userInput));
+                        break;
+                    case SESSION:
+                        // Logged in, or out - remember the token for a reconnect
+                        sessionToken = frame.getFields().isEmpty() ? null : frame.getText();
+                        break;
+                    case CLOSE:
+                        running = false;
+                        break;
+                    case ERROR:
+                        System.err.println("Error: " + frame.getText());
+                        running = false;
+                        break;
+                    default:
+                        break;
                     }
                     
-                    // Check for goodbye message
-                    if (serverMessage.contains("Goodbye")) {
+                } catch (IOException e) {
+                    if (sessionToken != null) {
+                        // Logged in - reconnect and resume instead of starting over
+                        running = reconnect();
+                    } else if (e instanceof EOFException) {
+                        System.out.println("Server closed connection.");
                         running = false;
+                    } else {
+                        throw e;
                     }
-                    
-                } catch (EOFException e) {
-                    System.out.println("Server closed connection.");
-                    running = false;
-                } catch (ClassNotFoundException e) {
-                    System.err.println("Error: Received unknown data format from server");
-                    running = false;
                 }
             }
             
@@ -86,16 +117,80 @@ public class Requester {
         }
     }
     
+    // Open the connection and exchange HELLOs, offering our session token if we have one
+    private boolean connect() throws IOException {
+        socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        System.out.println("Connected to server at " + SERVER_ADDRESS + ":" + SERVER_PORT);
+        
+        // Set up streams
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        
+        if (sessionToken == null) {
+            send(Frame.of(Opcode.HELLO, String.valueOf(FrameCodec.VERSION)));
+        } else {
+            send(Frame.of(Opcode.HELLO, String.valueOf(FrameCodec.VERSION), sessionToken));
+        }
+        Frame hello = FrameCodec.read(in);
+        if (hello.getOpcode() != Opcode.HELLO) {
+            System.err.println("Error: Server refused connection: " + hello.getText());
+            return false;
+        }
+        return true;
+    }
+    
+    // The connection dropped while logged in - try to get back to the same session
+    private boolean reconnect() {
+        System.out.println("\nConnection lost. Reconnecting...");
+        closeConnection();
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS * attempt);
+                return connect();
+            } catch (IOException e) {
+                closeConnection();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        System.err.println("Error: Could not reconnect to the server.");
+        return false;
+    }
+    
+    // Print every line of a screen frame in one go
+    private void printLines(Frame frame) {
+        StringBuilder screen = new StringBuilder();
+        for (String line : frame.getFields()) {
+            screen.append(line).append(System.lineSeparator());
+        }
+        System.out.print(screen);
+    }
+    
+    // Send one frame to the server
+    private void send(Frame frame) throws IOException {
+        FrameCodec.write(out, frame);
+        out.flush();
+    }
+    
     // Clean up resources when done
     private void cleanup() {
+        if (scanner != null) scanner.close();
+        if (closeConnection()) {
+            System.out.println("\nConnection closed.");
+        }
+    }
+    
+    // Close the socket and its streams - false if closing failed
+    private boolean closeConnection() {
         try {
-            if (scanner != null) scanner.close();
             if (in != null) in.close();
             if (out != null) out.close();
             if (socket != null) socket.close();
-            System.out.println("\nConnection closed.");
+            return true;
         } catch (IOException e) {
             System.err.println("Error closing connection: " + e.getMessage());
+            return false;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,224 @@
+package logging;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ServerLog - Leveled console logging that never waits on the console
+ * Callers put a line into a bounded buffer and return at once; a single
+ * background thread takes lines off in batches and writes them out, so a
+ * slow terminal or a full pipe holds up the writer and nobody else. Lines
+ * below the configured level are skipped before anything is built, which
+ * is what keeps the per-line "server>" echo free when it is turned off.
+ *
+ * When the buffer is full the default is to drop the new line and count
+ * it; the writer reports how many were lost once it catches up. Setting
+ * the overflow policy to block makes callers wait for room instead, for
+ * when every line matters more than latency.
+ *
+ * Settings: -Dlibrary.logLevel=debug|info|warn|error|off (default info),
+ * -Dlibrary.logOverflow=drop|block, -Dlibrary.logBuffer=N lines.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public final class ServerLog {
+
+    public enum Level {
+        DEBUG,  // every line sent to every client
+        INFO,   // logins, new records, startup and checkpoints
+        WARN,   // a client or request went wrong
+        ERROR,  // the server itself went wrong
+        OFF;
+
+        public static Level parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    // What to do with a line when the buffer is full
+    public enum Overflow {
+        DROP,
+        BLOCK;
+
+        public static Overflow parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    // One buffered line - the prefix and detail are joined on the writer thread
+    private static final class Entry {
+        final Level level;
+        final String prefix;
+        final String detail;
+        final Throwable error;
+        final CountDownLatch written;
+
+        Entry(Level level, String prefix, String detail, Throwable error, CountDownLatch written) {
+            this.level = level;
+            this.prefix = prefix;
+            this.detail = detail;
+            this.error = error;
+            this.written = written;
+        }
+    }
+
+    private static final int BATCH_SIZE = 256;
+    private static final long SHUTDOWN_FLUSH_MILLIS = 2000;
+
+    private static final Level LEVEL = Level.parse(System.getProperty("library.logLevel", "info"));
+    private static final Overflow OVERFLOW = Overflow.parse(System.getProperty("library.logOverflow", "drop"));
+    private static final ArrayBlockingQueue<Entry> buffer =
+            new ArrayBlockingQueue<>(Math.max(1, Integer.getInteger("library.logBuffer", 8192)));
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread writer = new Thread(ServerLog::drain, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+
+        // Write out whatever is still buffered when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(SHUTDOWN_FLUSH_MILLIS), "server-log-flush"));
+    }
+
+    private ServerLog() {
+    }
+
+    public static Level getLevel() {
+        return LEVEL;
+    }
+
+    // Check before building an expensive message
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null, null);
+    }
+
+    // The two parts are only joined if the line is written
+    public static void debug(String prefix, String detail) {
+        log(Level.DEBUG, prefix, detail, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null, null);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message, null, null);
+    }
+
+    // The stack trace is formatted by the writer
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, null, error);
+    }
+
+    // Lines lost to a full buffer since the server started
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    // Wait until every line logged before this call has been written
+    public static boolean flush(long timeoutMillis) {
+        CountDownLatch written = new CountDownLatch(1);
+        try {
+            if (!buffer.offer(new Entry(Level.OFF, null, null, null, written), timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            return written.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void log(Level level, String prefix, String detail, Throwable error) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Entry entry = new Entry(level, prefix, detail, error, null);
+        if (OVERFLOW == Overflow.BLOCK) {
+            try {
+                buffer.put(entry);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.increment();
+            }
+        } else if (!buffer.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    // Writer thread - take whatever is waiting and write it out in one go per stream
+    private static void drain() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        long reported = 0;
+
+        while (true) {
+            try {
+                batch.add(buffer.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            buffer.drainTo(batch, BATCH_SIZE - 1);
+
+            for (Entry entry : batch) {
+                if (entry.written != null) {
+                    // A flush marker - write everything before it first
+                    write(out, err);
+                    entry.written.countDown();
+                    continue;
+                }
+                StringBuilder target = entry.level.compareTo(Level.WARN) >= 0 ? err : out;
+                target.append(entry.prefix);
+                if (entry.detail != null) {
+                    target.append(entry.detail);
+                }
+                target.append(System.lineSeparator());
+                if (entry.error != null) {
+                    StringWriter trace = new StringWriter();
+                    entry.error.printStackTrace(new PrintWriter(trace));
+                    target.append(trace);
+                }
+            }
+            batch.clear();
+
+            long lost = dropped.sum();
+            if (lost > reported) {
+                err.append("[log] ").append(lost - reported).append(" lines dropped - buffer full")
+                        .append(System.lineSeparator());
+                reported = lost;
+            }
+            write(out, err);
+        }
+    }
+
+    private static void write(StringBuilder out, StringBuilder err) {
+        write(System.out, out);
+        write(System.err, err);
+    }
+
+    private static void write(PrintStream stream, StringBuilder text) {
+        if (text.length() > 0) {
+            stream.print(text);
+            stream.flush();
+            text.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram - Lock-free histogram of durations in nanoseconds
+ * Buckets are log-linear: every power of two is split into 16 equal
+ * buckets, so a percentile is within about 6% of the true value, from
+ * nanoseconds up to years, in under a thousand counters. Recording is one
+ * atomic increment and never allocates, so it is cheap enough to call on
+ * every request from any number of threads.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Values below this are counted exactly, one bucket each
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int LINEAR_BITS = SUB_BUCKET_BITS + 1;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - LINEAR_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long previous;
+        while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+            // Another thread raised the max - check again
+        }
+    }
+
+    // Record the time since a System.nanoTime() start
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // The value below which the given percentage of recordings fall, e.g. 99.9
+    public long getPercentileNanos(double percentile) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100.0, percentile) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // Add another histogram's recordings to this one
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.buckets.get(i);
+            if (n != 0) {
+                buckets.addAndGet(i, n);
+            }
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        long otherMax = other.max.get();
+        long previous;
+        while (otherMax > (previous = max.get()) && !max.compareAndSet(previous, otherMax)) {
+            // Another thread raised the max - check again
+        }
+    }
+
+    private static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + mantissa;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = LINEAR_BITS + (bucket - LINEAR_LIMIT) / SUB_BUCKETS;
+        int mantissa = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + mantissa) * width + width - 1;
+    }
+}
@@ -0,0 +1,42 @@
+package metrics;
+
+/**
+ * OperationSnapshot - One operation's figures at a point in time
+ * Read-only, with getters only, so JMX shows it as a composite value.
+ * Times are in milliseconds.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class OperationSnapshot {
+
+    private final String name;
+    private final long count;
+    private final long errors;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p99Millis;
+    private final double p999Millis;
+    private final double maxMillis;
+
+    OperationSnapshot(OperationStats stats) {
+        LatencyHistogram latency = stats.getLatency();
+        this.name = stats.getName();
+        this.count = latency.getCount();
+        this.errors = stats.getErrors();
+        this.meanMillis = latency.getMeanNanos() / 1e6;
+        this.p50Millis = latency.getPercentileNanos(50) / 1e6;
+        this.p99Millis = latency.getPercentileNanos(99) / 1e6;
+        this.p999Millis = latency.getPercentileNanos(99.9) / 1e6;
+        this.maxMillis = latency.getMaxNanos() / 1e6;
+    }
+
+    public String getName() { return name; }
+    public long getCount() { return count; }
+    public long getErrors() { return errors; }
+    public double getMeanMillis() { return meanMillis; }
+    public double getP50Millis() { return p50Millis; }
+    public double getP99Millis() { return p99Millis; }
+    public double getP999Millis() { return p999Millis; }
+    public double getMaxMillis() { return maxMillis; }
+}
@@ -0,0 +1,38 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * OperationStats - Count, error count and latency of one kind of operation
+ * Safe to record from any thread; recording does not allocate.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class OperationStats {
+
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+
+    OperationStats(String name) {
+        this.name = name;
+    }
+
+    public void record(long nanos, boolean failed) {
+        latency.record(nanos);
+        if (failed) {
+            errors.increment();
+        }
+    }
+
+    // Record the time since a System.nanoTime() start
+    public void recordSince(long startNanos, boolean failed) {
+        record(System.nanoTime() - startNanos, failed);
+    }
+
+    public String getName() { return name; }
+    public LatencyHistogram getLatency() { return latency; }
+    public long getCount() { return latency.getCount(); }
+    public long getErrors() { return errors.sum(); }
+}
@@ -0,0 +1,113 @@
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * ServerMetrics - Counters, histograms and gauges for the whole server
+ * Each kind of operation gets one OperationStats, looked up once by name
+ * and kept in a static field by the code that records it, so recording
+ * costs a clock read and a few atomic adds. The gauges are plain atomic
+ * counters that the transports raise and lower.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public final class ServerMetrics {
+
+    private static final ConcurrentHashMap<String, OperationStats> operations = new ConcurrentHashMap<>();
+    private static final AtomicInteger activeConnections = new AtomicInteger();
+    private static final AtomicInteger activeSessionThreads = new AtomicInteger();
+    private static final long startedAt = System.currentTimeMillis();
+
+    private ServerMetrics() {
+    }
+
+    // The stats for an operation, created the first time its name is used
+    public static OperationStats operation(String name) {
+        return operations.computeIfAbsent(name, OperationStats::new);
+    }
+
+    public static void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    public static void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    // Bracket a session step so the active-thread gauge counts it
+    public static void sessionStepStarted() {
+        activeSessionThreads.incrementAndGet();
+    }
+
+    public static void sessionStepFinished() {
+        activeSessionThreads.decrementAndGet();
+    }
+
+    public static int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public static int getActiveSessionThreads() {
+        return activeSessionThreads.get();
+    }
+
+    public static int getJvmThreads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    public static long getUptimeSeconds() {
+        return (System.currentTimeMillis() - startedAt) / 1000;
+    }
+
+    // Figures for every operation seen so far, sorted by name
+    public static List<OperationSnapshot> snapshot() {
+        List<OperationSnapshot> snapshots = new ArrayList<>(operations.size());
+        for (OperationStats stats : operations.values()) {
+            snapshots.add(new OperationSnapshot(stats));
+        }
+        snapshots.sort(Comparator.comparing(OperationSnapshot::getName));
+        return snapshots;
+    }
+
+    // Publish the metrics over JMX as library:type=ServerStats
+    public static void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerStats(),
+                new ObjectName("library:type=ServerStats"));
+    }
+
+    private static final class ServerStats implements ServerStatsMXBean {
+        @Override
+        public int getActiveConnections() {
+            return ServerMetrics.getActiveConnections();
+        }
+
+        @Override
+        public int getActiveSessionThreads() {
+            return ServerMetrics.getActiveSessionThreads();
+        }
+
+        @Override
+        public int getJvmThreads() {
+            return ServerMetrics.getJvmThreads();
+        }
+
+        @Override
+        public long getUptimeSeconds() {
+            return ServerMetrics.getUptimeSeconds();
+        }
+
+        @Override
+        public List<OperationSnapshot> getOperations() {
+            return snapshot();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package metrics;
+
+import java.util.List;
+
+/**
+ * ServerStatsMXBean - The server's metrics as seen over JMX
+ * Registered as library:type=ServerStats, so JConsole or any JMX client
+ * can read it from a running server.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public interface ServerStatsMXBean {
+
+    // Client connections open now
+    int getActiveConnections();
+
+    // Threads running a session step right now
+    int getActiveSessionThreads();
+
+    // Live threads in the JVM
+    int getJvmThreads();
+
+    long getUptimeSeconds();
+
+    // Every operation recorded so far, by name
+    List<OperationSnapshot> getOperations();
+}
@@ -26,14 +26,19 @@ public class LibraryRecord implements Serializable {
     private String recordId;
     private LocalDateTime date;
     private String creatorId;  // ID of person who created this record
-    private Status status;
-    private String assignedLibrarianId;
+    // Volatile - listings read these without taking the record's lock
+    private volatile Status status;
+    private volatile String assignedLibrarianId;
     
     // Book details (only used for book entries)
     private String bookTitle;
     private String bookAuthor;
     private String bookISBN;
 
+    // For subclasses that keep their data somewhere else and override the getters
+    protected LibraryRecord() {
+    }
+
     // Constructor for borrow requests (students)
     public LibraryRecord(String recordId, String creatorId) {
         this.recordType = RecordType.BORROW_REQUEST;
@@ -57,6 +62,20 @@ public class LibraryRecord implements Serializable {
         this.bookISBN = bookISBN;
     }
 
+    // Constructor for restoring a stored record exactly as it was saved
+    public LibraryRecord(RecordType recordType, String recordId, LocalDateTime date, String creatorId, Status status,
+            String assignedLibrarianId, String bookTitle, String bookAuthor, String bookISBN) {
+        this.recordType = recordType;
+        this.recordId = recordId;
+        this.date = date;
+        this.creatorId = creatorId;
+        this.status = status;
+        this.assignedLibrarianId = assignedLibrarianId;
+        this.bookTitle = bookTitle;
+        this.bookAuthor = bookAuthor;
+        this.bookISBN = bookISBN;
+    }
+
     // Getters
     public RecordType getRecordType() { return recordType; }
     public String getRecordId() { return recordId; }
@@ -76,26 +95,26 @@ public class LibraryRecord implements Serializable {
 
     // Assign request to a librarian and update status
     public void assignToLibrarian(String librarianId) {
-        this.assignedLibrarianId = librarianId;
-        if (this.status == Status.REQUESTED) {
-            this.status = Status.BORROWED;
+        setAssignedLibrarianId(librarianId);
+        if (getStatus() == Status.REQUESTED) {
+            setStatus(Status.BORROWED);
         }
     }
 
     // Mark book as returned
     public void markAsReturned() {
-        this.status = Status.RETURNED;
+        setStatus(Status.RETURNED);
     }
 
     // Get date in readable format
     public String getFormattedDate() {
-        return date.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        return getDate().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
     }
 
     @Override
     public String toString() {
-        return "LibraryRecord{recordType=" + recordType + ", recordId='" + recordId + "', date=" + getFormattedDate() + 
-               ", creatorId='" + creatorId + "', status=" + status + ", assignedLibrarianId='" + assignedLibrarianId + 
-               (recordType == RecordType.NEW_BOOK_ENTRY ? "', bookTitle='" + bookTitle + "', bookAuthor='" + bookAuthor + "', bookISBN='" + bookISBN : "") + "'}";
+        return "LibraryRecord{recordType=" + getRecordType() + ", recordId='" + getRecordId() + "', date=" + getFormattedDate() + 
+               ", creatorId='" + getCreatorId() + "', status=" + getStatus() + ", assignedLibrarianId='" + getAssignedLibrarianId() + 
+               (getRecordType() == RecordType.NEW_BOOK_ENTRY ? "', bookTitle='" + getBookTitle() + "', bookAuthor='" + getBookAuthor() + "', bookISBN='" + getBookISBN() : "") + "'}";
     }
 }
\ No newline at end of file
@@ -15,7 +15,7 @@ public class User implements Serializable {
     private String name;
     private String id;  // Student format: G00389705, Librarian format: LIB001
     private String email;
-    private String password;
+    private volatile String password;  // PBKDF2 hash - older plain text ones are hashed when the server loads them
     private String departmentName;
     private Role role;
 
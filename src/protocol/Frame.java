@@ -0,0 +1,34 @@
+package protocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// One protocol frame - an opcode and its text fields
+public final class Frame {
+
+    private final Opcode opcode;
+    private final List<String> fields;
+
+    public Frame(Opcode opcode, List<String> fields) {
+        this.opcode = opcode;
+        this.fields = Collections.unmodifiableList(fields);
+    }
+
+    public static Frame of(Opcode opcode, String... fields) {
+        return new Frame(opcode, Arrays.asList(fields));
+    }
+
+    public Opcode getOpcode() { return opcode; }
+    public List<String> getFields() { return fields; }
+
+    // First field, or empty text if the frame has none
+    public String getText() {
+        return fields.isEmpty() ? "" : fields.get(0);
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{opcode=" + opcode + ", fields=" + fields + "}";
+    }
+}
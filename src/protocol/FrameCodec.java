@@ -0,0 +1,143 @@
+package protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Binary wire format shared by the server and the client
+//
+//   frame := [int length][byte opcode][field]*
+//   field := [varint byteCount][UTF-8 bytes]
+//
+// length counts everything after itself. A connection starts with a HELLO
+// frame from each side carrying VERSION; a server that does not speak the
+// client's version answers with ERROR and closes. A client's HELLO may add
+// a session token from an earlier connection to pick up where it left off.
+public final class FrameCodec {
+
+    // Version 3 - SESSION tokens, resumed through HELLO
+    public static final int VERSION = 3;
+
+    // Reject anything larger so a bad length cannot make us allocate without limit
+    public static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+    private FrameCodec() {
+    }
+
+    // Encode a frame, ready to write
+    public static ByteBuffer encode(Frame frame) {
+        List<String> fields = frame.getFields();
+        byte[][] encoded = new byte[fields.size()][];
+        int length = 1;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = fields.get(i).getBytes(StandardCharsets.UTF_8);
+            length += varintSize(encoded[i].length) + encoded[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length);
+        buffer.put(frame.getOpcode().getCode());
+        for (byte[] field : encoded) {
+            putVarint(buffer, field.length);
+            buffer.put(field);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Take one frame from a buffer in read mode - returns null and consumes nothing if it is incomplete
+    public static Frame decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = checkLength(buffer.getInt(buffer.position()));
+        if (buffer.remaining() < 4 + length) {
+            return null;
+        }
+        buffer.position(buffer.position() + 4);
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        return parse(payload);
+    }
+
+    // Blocking write for stream-based peers - the caller decides when to flush
+    public static void write(OutputStream out, Frame frame) throws IOException {
+        ByteBuffer buffer = encode(frame);
+        out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+
+    // Blocking read for stream-based peers
+    public static Frame read(DataInputStream in) throws IOException {
+        int length = checkLength(in.readInt());
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return parse(payload);
+    }
+
+    private static Frame parse(byte[] payload) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        Opcode opcode = Opcode.fromCode(buffer.get());
+        if (opcode == null) {
+            throw new IOException("Unknown opcode: " + payload[0]);
+        }
+
+        List<String> fields = new ArrayList<>(1);
+        while (buffer.hasRemaining()) {
+            int size = getVarint(buffer);
+            if (size < 0) {
+                throw new IOException("Invalid field length in " + opcode + " frame: " + size);
+            }
+            if (size > buffer.remaining()) {
+                throw new IOException("Truncated field in " + opcode + " frame");
+            }
+            fields.add(new String(payload, buffer.position(), size, StandardCharsets.UTF_8));
+            buffer.position(buffer.position() + size);
+        }
+        return new Frame(opcode, fields);
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 1 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Truncated varint");
+            }
+            byte b = buffer.get();
+            if (shift == 28 && (b & 0x70) != 0) {
+                throw new IOException("Varint out of range");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}
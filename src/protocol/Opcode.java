@@ -0,0 +1,31 @@
+package protocol;
+
+// Frame types of the client/server wire protocol
+public enum Opcode {
+    HELLO(1),      // handshake, both directions - fields: protocol version, then a session token to resume (client, optional)
+    MESSAGE(2),    // server to client - fields: lines to display
+    PROMPT(3),     // server to client - fields: lines to display, the last asks for INPUT
+    INPUT(4),      // client to server - field: the user's reply
+    CLOSE(5),      // either direction - the session is over
+    ERROR(6),      // server to client - field: reason the connection is being refused
+    SESSION(7);    // server to client - field: token to resume this login after a reconnect, none once it has ended
+
+    private final byte code;
+
+    Opcode(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public static Opcode fromCode(byte code) {
+        for (Opcode opcode : values()) {
+            if (opcode.code == code) {
+                return opcode;
+            }
+        }
+        return null;
+    }
+}
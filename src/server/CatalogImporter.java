@@ -0,0 +1,356 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+import models.LibraryRecord;
+
+/**
+ * CatalogImporter - Streams a CSV or TSV catalog file into book entries
+ * The calling thread reads the file in chunks of rows and hands each chunk
+ * to a pool that parses and validates it in parallel. Finished chunks are
+ * stored in file order: one RecordStore.addAll and one log commit per
+ * chunk, with the chunk's IDs reserved in one go. Only a few chunks are in
+ * flight at once, so memory stays flat however big the file is.
+ * A chunk whose log commit fails is taken back out of the store and
+ * counted as not saved, and the import carries on with the next one.
+ *
+ * Imports run one at a time on a thread of their own (importFileAsync),
+ * so a session thread - or an NIO worker - is never tied up by one.
+ *
+ * Columns are title, author, isbn. A first row naming them (in any order)
+ * is used as a header. A TSV is recognised by its .tsv name or a tab in
+ * the first row. CSV fields may be quoted with doubled quotes inside, but
+ * a quoted field may not span lines.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class CatalogImporter {
+
+    private static final int BATCH_ROWS = 1000;
+    private static final int MAX_REPORTED_REJECTIONS = 20;
+
+    // Imports queue for this one thread rather than run on the session that asked
+    private static final ExecutorService IMPORTS = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "catalog-import");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Outcome of one import
+    public static final class Report {
+        private long rowsRead;
+        private long imported;
+        private long rejected;
+        private long failed;
+        private final List<String> rejections = new ArrayList<>();
+        private final List<String> failures = new ArrayList<>();
+        private long elapsedNanos;
+
+        public long getRowsRead() { return rowsRead; }
+        public long getImported() { return imported; }
+        public long getRejected() { return rejected; }
+
+        // Valid books that could not be saved, e.g. because the log could not be written
+        public long getFailed() { return failed; }
+
+        // Why each chunk of those books failed, e.g. "1000 books from line 2: disk full"
+        public List<String> getFailures() { return failures; }
+
+        // The first few rejected rows with the reason, e.g. "line 12: missing title"
+        public List<String> getRejections() { return rejections; }
+
+        public double getElapsedSeconds() {
+            return elapsedNanos / 1_000_000_000.0;
+        }
+
+        public long getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rowsRead * 1_000_000_000L / elapsedNanos;
+        }
+
+        private void fail(long books, String failure) {
+            failed += books;
+            if (failures.size() < MAX_REPORTED_REJECTIONS) {
+                failures.add(failure);
+            }
+        }
+
+        private void reject(String rejection) {
+            rejected++;
+            if (rejections.size() < MAX_REPORTED_REJECTIONS) {
+                rejections.add(rejection);
+            }
+        }
+    }
+
+    // Where each field sits in a row
+    private static final class Columns {
+        int title = 0;
+        int author = 1;
+        int isbn = 2;
+    }
+
+    // Rows read from the file, numbered for error messages
+    private static final class Chunk {
+        final long firstLine;
+        final List<String> lines = new ArrayList<>(BATCH_ROWS);
+
+        Chunk(long firstLine) {
+            this.firstLine = firstLine;
+        }
+    }
+
+    // A parsed chunk - books ready to store and the rows that were refused
+    private static final class ParsedChunk {
+        final long firstLine;
+        final List<LibraryRecord> books = new ArrayList<>(BATCH_ROWS);
+        final List<String> rejections = new ArrayList<>();
+        int rows;
+
+        ParsedChunk(long firstLine) {
+            this.firstLine = firstLine;
+        }
+    }
+
+    private final RecordStore records;
+    private final RecordIdAllocator recordIds;
+    private final int parallelism;
+
+    public CatalogImporter(RecordStore records, RecordIdAllocator recordIds, int parallelism) {
+        this.records = records;
+        this.recordIds = recordIds;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    // Import on the import thread - the future fails with an IOException if the import stops
+    public CompletableFuture<Report> importFileAsync(Path file, String librarianId) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return importFile(file, librarianId);
+            } catch (IOException e) {
+                throw new CompletionException(new IOException("Import stopped: " + e.getMessage(), e));
+            }
+        }, IMPORTS);
+    }
+
+    // Import every row of a file as a book entry created by the given librarian
+    public Report importFile(Path file, String librarianId) throws IOException {
+        Report report = new Report();
+        long start = System.nanoTime();
+        ExecutorService parsers = Executors.newFixedThreadPool(parallelism);
+        ArrayDeque<Future<ParsedChunk>> inFlight = new ArrayDeque<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String first = reader.readLine();
+            if (first == null) {
+                return report;
+            }
+            char delimiter = file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".tsv")
+                    || first.indexOf('\t') >= 0 ? '\t' : ',';
+            Columns columns = readHeader(first, delimiter);
+
+            long lineNumber = 1;
+            Chunk chunk = new Chunk(columns == null ? 1 : 2);
+            if (columns == null) {
+                columns = new Columns();
+                chunk.lines.add(first);
+            }
+
+            String line;
+            while (true) {
+                line = reader.readLine();
+                if (line != null) {
+                    lineNumber++;
+                    chunk.lines.add(line);
+                }
+                if (chunk.lines.size() == BATCH_ROWS || (line == null && !chunk.lines.isEmpty())) {
+                    Chunk full = chunk;
+                    Columns layout = columns;
+                    inFlight.add(parsers.submit(() -> parse(full, layout, delimiter, librarianId)));
+                    chunk = new Chunk(lineNumber + 1);
+
+                    // Keep a few chunks ahead of the store, no more
+                    if (inFlight.size() >= parallelism * 2) {
+                        store(inFlight.poll(), report);
+                    }
+                }
+                if (line == null) {
+                    break;
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                store(inFlight.poll(), report);
+            }
+        } finally {
+            parsers.shutdownNow();
+            report.elapsedNanos = System.nanoTime() - start;
+        }
+        return report;
+    }
+
+    // Store one parsed chunk - one batch insert and one durable commit
+    private void store(Future<ParsedChunk> pending, Report report) throws IOException {
+        ParsedChunk parsed;
+        try {
+            parsed = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed: " + e.getCause().getMessage(), e.getCause());
+        }
+
+        report.rowsRead += parsed.rows;
+        for (String rejection : parsed.rejections) {
+            report.reject(rejection);
+        }
+        if (parsed.books.isEmpty()) {
+            return;
+        }
+
+        // No checkpoint between adding the chunk and logging it, so a chunk taken back never reaches a snapshot
+        List<LibraryRecord> added;
+        Lock publishing = Provider.publishLock();
+        publishing.lock();
+        try {
+            added = records.addAll(parsed.books);
+            List<OperationLog.Entry> entries = new ArrayList<>(added.size());
+            for (LibraryRecord book : added) {
+                entries.add(OperationLog.Entry.recordCreated(book));
+            }
+            try {
+                Provider.logOperations(entries);
+            } catch (IOException e) {
+                // Not durable - take the chunk back and count it as failed rather than imported
+                for (LibraryRecord book : added) {
+                    records.remove(book.getRecordId());
+                }
+                report.fail(added.size(), added.size() + " books from line " + parsed.firstLine + ": " + e.getMessage());
+                return;
+            }
+        } finally {
+            publishing.unlock();
+        }
+
+        report.imported += added.size();
+        if (added.size() < parsed.books.size()) {
+            for (LibraryRecord book : parsed.books) {
+                if (!added.contains(book)) {
+                    report.reject("\"" + book.getBookTitle() + "\": could not be stored");
+                }
+            }
+        }
+    }
+
+    // Runs on the parser pool
+    private ParsedChunk parse(Chunk chunk, Columns columns, char delimiter, String librarianId) {
+        ParsedChunk parsed = new ParsedChunk(chunk.firstLine);
+        List<String[]> valid = new ArrayList<>(chunk.lines.size());
+        long lineNumber = chunk.firstLine;
+        for (String line : chunk.lines) {
+            long current = lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            parsed.rows++;
+
+            List<String> fields;
+            try {
+                fields = splitRow(line, delimiter);
+            } catch (IllegalArgumentException e) {
+                parsed.rejections.add("line " + current + ": " + e.getMessage());
+                continue;
+            }
+            String title = field(fields, columns.title);
+            String author = field(fields, columns.author);
+            String isbn = field(fields, columns.isbn);
+            if (title.isEmpty()) {
+                parsed.rejections.add("line " + current + ": missing title");
+            } else if (author.isEmpty()) {
+                parsed.rejections.add("line " + current + ": missing author");
+            } else if (!isbn.isEmpty() && IsbnIndex.normalize(isbn) == null) {
+                parsed.rejections.add("line " + current + ": invalid ISBN " + isbn);
+            } else {
+                valid.add(new String[] { title, author, isbn });
+            }
+        }
+
+        if (!valid.isEmpty()) {
+            RecordIdAllocator.Block ids = recordIds.reserve(valid.size());
+            for (int i = 0; i < valid.size(); i++) {
+                String[] row = valid.get(i);
+                parsed.books.add(new LibraryRecord(ids.id("BOOK", i), librarianId, row[0], row[1], row[2]));
+            }
+        }
+        return parsed;
+    }
+
+    // Column positions from a header row, or null if the row is data
+    private static Columns readHeader(String line, char delimiter) {
+        List<String> names;
+        try {
+            names = splitRow(line, delimiter);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        for (int i = 0; i < names.size(); i++) {
+            names.set(i, names.get(i).trim().toLowerCase(Locale.ROOT));
+        }
+        Columns columns = new Columns();
+        columns.title = names.indexOf("title");
+        columns.author = names.indexOf("author");
+        columns.isbn = names.indexOf("isbn");
+        return columns.title < 0 || columns.author < 0 ? null : columns;
+    }
+
+    private static String field(List<String> fields, int index) {
+        return index >= 0 && index < fields.size() ? fields.get(index).trim() : "";
+    }
+
+    // Split one row on the delimiter, honouring quotes
+    static List<String> splitRow(String line, char delimiter) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quote");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,141 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import models.LibraryRecord;
+
+/**
+ * CatalogIndex - Inverted index over book titles and authors
+ * Titles and authors are split into lower-case terms, and each term maps
+ * to the book entries that contain it with a weight (title words count
+ * more than author words). Terms are kept sorted, so a query word also
+ * matches every term it is a prefix of with a single range scan.
+ * Books are ranked by how many query words they match, then by weight.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class CatalogIndex {
+
+    private static final int TITLE_WEIGHT = 2;
+    private static final int AUTHOR_WEIGHT = 1;
+
+    // An exact term match counts this many times more than a prefix match
+    private static final int EXACT_BONUS = 2;
+
+    // Shorter query words only match whole terms - a one-letter prefix would match half the index
+    private static final int MIN_PREFIX_LENGTH = 2;
+
+    // term -> (recordId -> weight)
+    private final ConcurrentSkipListMap<String, ConcurrentHashMap<String, Integer>> postings =
+            new ConcurrentSkipListMap<>();
+
+    // Index a new record - anything other than a book entry is ignored
+    public void add(LibraryRecord record) {
+        if (record.getRecordType() != LibraryRecord.RecordType.NEW_BOOK_ENTRY) {
+            return;
+        }
+        Map<String, Integer> weights = new HashMap<>();
+        for (String term : tokenize(record.getBookTitle())) {
+            weights.put(term, TITLE_WEIGHT);
+        }
+        for (String term : tokenize(record.getBookAuthor())) {
+            weights.merge(term, AUTHOR_WEIGHT, Integer::sum);
+        }
+        for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+            postings.computeIfAbsent(weight.getKey(), k -> new ConcurrentHashMap<>())
+                    .put(record.getRecordId(), weight.getValue());
+        }
+    }
+
+    // Take a record back out, e.g. a book whose creation could not be saved
+    public void remove(LibraryRecord record) {
+        if (record.getRecordType() != LibraryRecord.RecordType.NEW_BOOK_ENTRY) {
+            return;
+        }
+        Set<String> terms = tokenize(record.getBookTitle());
+        terms.addAll(tokenize(record.getBookAuthor()));
+        for (String term : terms) {
+            Map<String, Integer> books = postings.get(term);
+            if (books != null) {
+                books.remove(record.getRecordId());
+            }
+        }
+    }
+
+    // IDs of the best matching books, best first
+    public List<String> search(String query, int limit) {
+        // recordId -> {query words matched, score}
+        Map<String, int[]> hits = new HashMap<>();
+        for (String word : tokenize(query)) {
+            Map<String, Integer> best = new HashMap<>();
+            Map<String, Integer> exact = postings.get(word);
+            if (exact != null) {
+                for (Map.Entry<String, Integer> posting : exact.entrySet()) {
+                    best.put(posting.getKey(), posting.getValue() * EXACT_BONUS);
+                }
+            }
+            if (word.length() >= MIN_PREFIX_LENGTH) {
+                for (Map<String, Integer> prefixed : postings.subMap(word, false, word + Character.MAX_VALUE, false)
+                        .values()) {
+                    for (Map.Entry<String, Integer> posting : prefixed.entrySet()) {
+                        best.merge(posting.getKey(), posting.getValue(), Math::max);
+                    }
+                }
+            }
+            for (Map.Entry<String, Integer> match : best.entrySet()) {
+                int[] hit = hits.computeIfAbsent(match.getKey(), k -> new int[2]);
+                hit[0]++;
+                hit[1] += match.getValue();
+            }
+        }
+
+        List<Map.Entry<String, int[]>> ranked = new ArrayList<>(hits.entrySet());
+        ranked.sort((a, b) -> {
+            if (a.getValue()[0] != b.getValue()[0]) {
+                return Integer.compare(b.getValue()[0], a.getValue()[0]);
+            }
+            if (a.getValue()[1] != b.getValue()[1]) {
+                return Integer.compare(b.getValue()[1], a.getValue()[1]);
+            }
+            return a.getKey().compareTo(b.getKey());
+        });
+
+        List<String> recordIds = new ArrayList<>(Math.min(limit, ranked.size()));
+        for (Map.Entry<String, int[]> hit : ranked) {
+            if (recordIds.size() == limit) {
+                break;
+            }
+            recordIds.add(hit.getKey());
+        }
+        return recordIds;
+    }
+
+    // Split text into lower-case words of letters and digits - a hand-rolled loop, as this runs for
+    // every book at startup and on import
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        if (text == null) {
+            return terms;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,1051 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+import logging.ServerLog;
+import metrics.OperationSnapshot;
+import metrics.OperationStats;
+import metrics.ServerMetrics;
+import protocol.Frame;
+import protocol.Opcode;
+
+import models.LibraryRecord;
+import models.User;
+
+/**
+ * ClientSession - The menu conversation with one client, driven by events
+ * The session never blocks waiting for input: it sends a prompt, remembers
+ * which step handles the answer, and returns. The transport (a blocking
+ * ServerThread or the NioServer event loop) calls onInput() when the
+ * client's reply arrives. Output for one interaction is collected in a
+ * ResponseBuilder and delivered as a single frame.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class ClientSession {
+
+    // Where the session's screens go - supplied by the transport
+    public interface Output {
+        void deliver(Frame frame);
+
+        // Run a session event later, in turn with the client's input
+        void execute(Runnable event);
+    }
+
+    // Details collected over the registration prompts
+    private static final class RegistrationForm {
+        String name;
+        String userId;
+        String email;
+        String password;
+        String departmentName;
+    }
+
+    // Latency and error counts for each menu operation
+    private static final OperationStats REGISTER = ServerMetrics.operation("register");
+    private static final OperationStats LOGIN = ServerMetrics.operation("login");
+    private static final OperationStats UPDATE_PASSWORD = ServerMetrics.operation("update password");
+    private static final OperationStats CREATE_REQUEST = ServerMetrics.operation("create request");
+    private static final OperationStats CREATE_BOOK = ServerMetrics.operation("create book");
+    private static final OperationStats ASSIGN = ServerMetrics.operation("assign");
+    private static final OperationStats VIEW_MY_RECORDS = ServerMetrics.operation("view my records");
+    private static final OperationStats VIEW_ALL_RECORDS = ServerMetrics.operation("view all records");
+    private static final OperationStats VIEW_ASSIGNED = ServerMetrics.operation("view assigned records");
+    private static final OperationStats SEARCH = ServerMetrics.operation("search catalog");
+    private static final OperationStats ISBN_LOOKUP = ServerMetrics.operation("isbn lookup");
+    private static final OperationStats IMPORT = ServerMetrics.operation("import catalog");
+    private static final OperationStats EXPORT = ServerMetrics.operation("export records");
+
+    // Records shown per page in the listing screens
+    private static final int PAGE_SIZE = Integer.getInteger("library.pageSize", 10);
+
+    // Most books a catalog search lists
+    private static final int SEARCH_RESULTS = 20;
+
+    // Catalog imports read files from here: -Dlibrary.importDir=path
+    private static final Path IMPORT_DIRECTORY = Paths.get(System.getProperty("library.importDir", "."));
+
+    // Record exports are written here: -Dlibrary.exportDir=path
+    private static final Path EXPORT_DIRECTORY = Paths.get(System.getProperty("library.exportDir", "."));
+
+    private final Output output;
+    private final String clientAddress;
+    private final ResponseBuilder response = new ResponseBuilder();
+    private final UserDirectory registeredUsers;
+    private final RecordStore libraryRecords;
+    private User loggedInUser = null;
+
+    // Token of the logged-in user's session - lets a reconnecting client skip the login
+    private String sessionToken = null;
+
+    // Step waiting for the client's next input, or null when the menu should be shown
+    private Consumer<String> pendingInput;
+    private boolean closed = false;
+
+    // True while the session waits on work running elsewhere, such as a password check
+    private boolean awaiting = false;
+
+    // Operation being timed, if any - recorded when the step doing it finishes
+    private OperationStats operation;
+    private long operationStart;
+    private boolean operationFailed;
+
+    public ClientSession(Output output, String clientAddress, UserDirectory users, RecordStore records) {
+        this.output = output;
+        this.clientAddress = clientAddress;
+        this.registeredUsers = users;
+        this.libraryRecords = records;
+    }
+
+    // Send welcome message and the first menu, or pick up the session the client held before reconnecting
+    public void start(String resumeToken) {
+        ServerMetrics.sessionStepStarted();
+        try {
+            greet(resumeToken);
+        } finally {
+            ServerMetrics.sessionStepFinished();
+        }
+    }
+
+    private void greet(String resumeToken) {
+        if (resumeToken != null && !resumeToken.isEmpty()) {
+            User user = registeredUsers.findById(Provider.sessions().resume(resumeToken));
+            if (user != null) {
+                loggedInUser = user;
+                sessionToken = resumeToken;
+                sendMessage("Session resumed. Welcome back, " + user.getName() + "!");
+                ServerLog.info("Session resumed: " + user.getEmail());
+                showMenu();
+                flush();
+                return;
+            }
+            // Tell the client to forget the token
+            output.deliver(Frame.of(Opcode.SESSION));
+            sendMessage("Your session has expired. Please log in again.");
+        }
+        sendMessage("Welcome to the Library Management System!");
+        showMenu();
+        flush();
+    }
+
+    // Handle one line of input from the client
+    public void onInput(String input) {
+        Consumer<String> step = pendingInput;
+        pendingInput = null;
+        if (closed || step == null) {
+            return;
+        }
+        Provider.sessions().touch(sessionToken);
+
+        ServerMetrics.sessionStepStarted();
+        try {
+            step.accept(input);
+        } catch (RuntimeException e) {
+            operationFailed = true;
+            ServerLog.error("Error handling client input: " + e.getMessage());
+        } finally {
+            finishEvent();
+            ServerMetrics.sessionStepFinished();
+        }
+    }
+
+    // True once the client has chosen to exit
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // True while a step waits on work elsewhere - its result arrives through Output.execute
+    public boolean isAwaiting() {
+        return awaiting;
+    }
+
+    // Finished step with nothing else to ask - back to the menu
+    private void finishEvent() {
+        if (awaiting) {
+            return;
+        }
+        if (operation != null) {
+            operation.recordSince(operationStart, operationFailed);
+            operation = null;
+        }
+        if (!closed && pendingInput == null) {
+            showMenu();
+        }
+        flush();
+    }
+
+    // Let slow work finish elsewhere, then continue with its result as a new session event
+    private <T> void await(CompletableFuture<T> work, Consumer<T> next) {
+        awaiting = true;
+        work.whenComplete((result, error) -> output.execute(() -> {
+            awaiting = false;
+            ServerMetrics.sessionStepStarted();
+            try {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+                    sendMessage("ERROR: " + cause.getMessage());
+                } else {
+                    next.accept(result);
+                }
+            } catch (RuntimeException e) {
+                operationFailed = true;
+                ServerLog.error("Error handling client input: " + e.getMessage());
+            } finally {
+                finishEvent();
+                ServerMetrics.sessionStepFinished();
+            }
+        }));
+    }
+
+    // Start timing an operation - any ERROR sent before the step ends counts it as failed
+    private void begin(OperationStats stats) {
+        operation = stats;
+        operationStart = System.nanoTime();
+        operationFailed = false;
+    }
+
+    private void showMenu() {
+        if (loggedInUser == null) {
+            showMainMenu();
+        } else if (loggedInUser.isStudent()) {
+            showStudentMenu();
+        } else if (loggedInUser.isLibrarian()) {
+            showLibrarianMenu();
+        }
+    }
+
+    // Pre-login menu
+    private void showMainMenu() {
+        sendMessage("\n=== MENU ===");
+        sendMessage("1. Register");
+        sendMessage("2. Login");
+        sendMessage("3. Exit");
+        prompt("Choose an option:", this::onMainMenuChoice);
+    }
+
+    private void onMainMenuChoice(String choice) {
+        switch (choice.trim()) {
+        case "1":
+            handleRegistration();
+            break;
+        case "2":
+            handleLogin();
+            break;
+        case "3":
+            exit();
+            break;
+        default:
+            sendMessage("Invalid option. Please try again.");
+        }
+    }
+
+    // Handle student menu
+    private void showStudentMenu() {
+        sendMessage("\n=== STUDENT MENU ===");
+        sendMessage("Logged in as: " + loggedInUser.getName() + " (" + loggedInUser.getId() + ")");
+        sendMessage("3. Create Borrow Request");
+        sendMessage("6. View My Records");
+        sendMessage("7. Update Password");
+        sendMessage("8. Logout");
+        sendMessage("9. Exit");
+        sendMessage("10. Search Catalog");
+        prompt("Choose an option:", this::onStudentMenuChoice);
+    }
+
+    private void onStudentMenuChoice(String choice) {
+        switch (choice.trim()) {
+        case "3":
+            handleCreateBorrowRequest();
+            break;
+        case "6":
+            handleViewMyRecords();
+            break;
+        case "7":
+            handleUpdatePassword();
+            break;
+        case "8":
+            logout();
+            break;
+        case "9":
+            exit();
+            break;
+        case "10":
+            handleSearchCatalog();
+            break;
+        default:
+            sendMessage("Invalid option. Please try again.");
+        }
+    }
+
+    // Handle librarian menu
+    private void showLibrarianMenu() {
+        sendMessage("\n=== LIBRARIAN MENU ===");
+        sendMessage("Logged in as: " + loggedInUser.getName() + " (" + loggedInUser.getId() + ")");
+        sendMessage("3. Create New Book Entry");
+        sendMessage("4. View All Records");
+        sendMessage("5. Assign Borrow Request");
+        sendMessage("6. View Records Assigned to Me");
+        sendMessage("7. Update Password");
+        sendMessage("8. Logout");
+        sendMessage("9. Exit");
+        sendMessage("10. Search Catalog");
+        sendMessage("11. Lookup by ISBN");
+        sendMessage("12. Import Catalog File");
+        sendMessage("13. Export Records");
+        sendMessage("14. Server Stats");
+        prompt("Choose an option:", this::onLibrarianMenuChoice);
+    }
+
+    private void onLibrarianMenuChoice(String choice) {
+        switch (choice.trim()) {
+        case "3":
+            handleCreateBookEntry();
+            break;
+        case "4":
+            handleViewAllRecords();
+            break;
+        case "5":
+            handleAssignBorrowRequest();
+            break;
+        case "6":
+            handleViewAssignedRecords();
+            break;
+        case "7":
+            handleUpdatePassword();
+            break;
+        case "8":
+            logout();
+            break;
+        case "9":
+            exit();
+            break;
+        case "10":
+            handleSearchCatalog();
+            break;
+        case "11":
+            handleIsbnLookup();
+            break;
+        case "12":
+            handleImportCatalog();
+            break;
+        case "13":
+            handleExportRecords();
+            break;
+        case "14":
+            handleServerStats();
+            break;
+        default:
+            sendMessage("Invalid option. Please try again.");
+        }
+    }
+
+    private void logout() {
+        endSession();
+        loggedInUser = null;
+        sendMessage("Logged out successfully!");
+    }
+
+    private void exit() {
+        endSession();
+        sendMessage("Goodbye!");
+        closed = true;
+    }
+
+    // Revoke the session token so it cannot be used to come back in
+    private void endSession() {
+        if (sessionToken != null) {
+            Provider.sessions().revoke(sessionToken);
+            sessionToken = null;
+            output.deliver(Frame.of(Opcode.SESSION));
+        }
+    }
+
+    // Handle registration - one step per prompt
+    private void handleRegistration() {
+        sendMessage("\n=== REGISTRATION ===");
+        RegistrationForm form = new RegistrationForm();
+        prompt("Enter your name:", name -> onRegistrationName(form, name));
+    }
+
+    private void onRegistrationName(RegistrationForm form, String name) {
+        if (!isValidInput(name)) {
+            sendMessage("ERROR: Name cannot be empty. Registration failed.");
+            return;
+        }
+        form.name = name;
+        prompt("Enter your ID (Students: G00123456, Librarians: LIB001):", userId -> onRegistrationId(form, userId));
+    }
+
+    private void onRegistrationId(RegistrationForm form, String userId) {
+        if (!isValidInput(userId)) {
+            sendMessage("ERROR: ID cannot be empty. Registration failed.");
+            return;
+        }
+
+        // Check if ID already exists
+        if (registeredUsers.isIdTaken(userId)) {
+            sendMessage("ERROR: ID already exists. Registration failed.");
+            return;
+        }
+        form.userId = userId;
+        prompt("Enter your email:", email -> onRegistrationEmail(form, email));
+    }
+
+    private void onRegistrationEmail(RegistrationForm form, String email) {
+        // Check if email already exists
+        if (registeredUsers.isEmailTaken(email)) {
+            sendMessage("ERROR: Email already exists. Registration failed.");
+            return;
+        }
+        form.email = email;
+        prompt("Enter your password:", password -> {
+            form.password = password;
+            prompt("Enter your department name:", departmentName -> {
+                form.departmentName = departmentName;
+                prompt("Select role (1=Student, 2=Librarian):", roleChoice -> completeRegistration(form, roleChoice));
+            });
+        });
+    }
+
+    private void completeRegistration(RegistrationForm form, String roleChoice) {
+        begin(REGISTER);
+        // Convert to enum
+        User.Role userRole;
+        if (roleChoice.equals("1")) {
+            userRole = User.Role.STUDENT;
+        } else if (roleChoice.equals("2")) {
+            userRole = User.Role.LIBRARIAN;
+        } else {
+            sendMessage("ERROR: Invalid role selection. Registration failed.");
+            return;
+        }
+
+        // Only the password's hash is kept - hashing is slow, so it runs on the verifier pool
+        await(Provider.credentials().hash(form.password), passwordHash ->
+            registerUser(new User(form.name, form.userId, form.email, passwordHash, form.departmentName, userRole)));
+    }
+
+    private void registerUser(User newUser) {
+        Lock publishing = Provider.publishLock();
+        publishing.lock();
+        try {
+            // Add to directory - re-checks ID and email atomically in case another client got there first
+            UserDirectory.RegistrationResult result = registeredUsers.register(newUser);
+            if (result == UserDirectory.RegistrationResult.ID_TAKEN) {
+                sendMessage("ERROR: ID already exists. Registration failed.");
+                return;
+            } else if (result == UserDirectory.RegistrationResult.EMAIL_TAKEN) {
+                sendMessage("ERROR: Email already exists. Registration failed.");
+                return;
+            }
+
+            // Log the change before acknowledging it - a registration that cannot be saved is taken back
+            try {
+                Provider.logOperation(OperationLog.Entry.userRegistered(newUser));
+            } catch (IOException e) {
+                registeredUsers.remove(newUser);
+                sendMessage("ERROR: Could not save your registration. Please try again.");
+                return;
+            }
+        } finally {
+            publishing.unlock();
+        }
+
+        sendMessage("SUCCESS: Registration complete! You can now log in.");
+        ServerLog.info("New user registered: " + newUser);
+    }
+
+    // Handle user login
+    private void handleLogin() {
+        sendMessage("\n=== LOGIN ===");
+        prompt("Enter your email:", email ->
+            prompt("Enter your password:", password -> completeLogin(email, password)));
+    }
+
+    private void completeLogin(String email, String password) {
+        begin(LOGIN);
+        // Credentials are checked on the verifier pool, never on this thread
+        await(Provider.credentials().login(registeredUsers, email, password, clientAddress), result -> {
+            if (result.getOutcome() == CredentialVerifier.LoginResult.Outcome.LOCKED) {
+                sendMessage("ERROR: Too many failed logins. Try again in " + result.getRetryAfterSeconds() + " seconds.");
+                return;
+            }
+            if (result.getOutcome() != CredentialVerifier.LoginResult.Outcome.SUCCESS) {
+                sendMessage("ERROR: Invalid email or password. Login failed.");
+                return;
+            }
+
+            User user = result.getUser();
+            storeUpgradedHash(user, result);
+            loggedInUser = user;
+            sessionToken = Provider.sessions().issue(user.getId());
+            output.deliver(Frame.of(Opcode.SESSION, sessionToken));
+            sendMessage("SUCCESS: Login successful! Welcome, " + user.getName());
+            ServerLog.info("User logged in: " + user.getEmail());
+        });
+    }
+
+    // A plain text or outdated hash was just verified - replace it with a current one
+    private void storeUpgradedHash(User user, CredentialVerifier.LoginResult result) {
+        String upgradedHash = result.getUpgradedHash();
+        if (upgradedHash == null) {
+            return;
+        }
+        try {
+            Provider.logThenApply(OperationLog.Entry.passwordUpdated(user.getId(), upgradedHash),
+                    () -> user.setPassword(upgradedHash));
+        } catch (IOException e) {
+            // The old hash stays - the upgrade is tried again at the next login
+        }
+    }
+
+    // Handle password update
+    private void handleUpdatePassword() {
+        sendMessage("\n=== UPDATE PASSWORD ===");
+
+        // Verify current password
+        prompt("Enter your current password:", currentPassword ->
+            await(Provider.credentials().checkPassword(loggedInUser, currentPassword, clientAddress), result -> {
+                if (result.getOutcome() == CredentialVerifier.LoginResult.Outcome.LOCKED) {
+                    sendMessage("ERROR: Too many failed attempts. Try again in " + result.getRetryAfterSeconds() + " seconds.");
+                    return;
+                }
+                if (result.getOutcome() != CredentialVerifier.LoginResult.Outcome.SUCCESS) {
+                    sendMessage("ERROR: Current password is incorrect. Password not changed.");
+                    return;
+                }
+                prompt("Enter your new password:", newPassword ->
+                    prompt("Confirm your new password:", confirmPassword ->
+                        completePasswordUpdate(newPassword, confirmPassword)));
+            }));
+    }
+
+    private void completePasswordUpdate(String newPassword, String confirmPassword) {
+        begin(UPDATE_PASSWORD);
+        if (!newPassword.equals(confirmPassword)) {
+            sendMessage("ERROR: Passwords do not match. Password not changed.");
+            return;
+        }
+
+        // Update password - only its hash is stored or logged
+        await(Provider.credentials().hash(newPassword), passwordHash -> {
+            User user = loggedInUser;
+            try {
+                Provider.logThenApply(OperationLog.Entry.passwordUpdated(user.getId(), passwordHash),
+                        () -> user.setPassword(passwordHash));
+            } catch (IOException e) {
+                sendMessage("ERROR: Could not save the new password. Password not changed.");
+                return;
+            }
+
+            // Sessions opened with the old password end, this one carries on
+            Provider.sessions().revokeAll(loggedInUser.getId(), sessionToken);
+
+            sendMessage("SUCCESS: Password updated successfully!");
+            ServerLog.info("Password updated for user: " + loggedInUser.getEmail());
+        });
+    }
+
+    // Handle CreateBorrow Request
+    private void handleCreateBorrowRequest() {
+        begin(CREATE_REQUEST);
+        sendMessage("\n=== CREATE BORROW REQUEST ===");
+
+        // Generate unique record ID
+        String recordId = Provider.recordIds().next("REQ");
+
+        // Create borrow request
+        LibraryRecord request = new LibraryRecord(recordId, loggedInUser.getId());
+
+        Lock publishing = Provider.publishLock();
+        publishing.lock();
+        try {
+            // Add to records list - refused if another record already has this ID
+            if (!libraryRecords.add(request)) {
+                sendMessage("ERROR: Could not create borrow request. Please try again.");
+                return;
+            }
+
+            // Log the change before acknowledging it - a request that cannot be saved is taken back
+            try {
+                Provider.logOperation(OperationLog.Entry.recordCreated(request));
+            } catch (IOException e) {
+                libraryRecords.remove(recordId);
+                sendMessage("ERROR: Could not save borrow request. Please try again.");
+                return;
+            }
+        } finally {
+            publishing.unlock();
+        }
+
+        sendMessage("SUCCESS: Borrow request created!");
+        sendMessage("Request ID: " + recordId);
+        sendMessage("Status: REQUESTED");
+        ServerLog.info("Borrow request created: " + recordId + " by " + loggedInUser.getId());
+    }
+
+    // Handle creating new book entry (librarians only)
+    private void handleCreateBookEntry() {
+        sendMessage("\n=== CREATE NEW BOOK ENTRY ===");
+        prompt("Enter book title:", bookTitle ->
+            prompt("Enter book author:", bookAuthor ->
+                prompt("Enter book ISBN:", bookISBN ->
+                    checkDuplicateIsbn(bookTitle, bookAuthor, bookISBN))));
+    }
+
+    // Warn before adding a second copy of a book already in the catalog
+    private void checkDuplicateIsbn(String bookTitle, String bookAuthor, String bookISBN) {
+        if (IsbnIndex.normalize(bookISBN) == null) {
+            sendMessage("Note: " + bookISBN + " is not a valid ISBN-10 or ISBN-13, so it cannot be looked up by ISBN.");
+            completeBookEntry(bookTitle, bookAuthor, bookISBN);
+            return;
+        }
+
+        List<LibraryRecord> copies = libraryRecords.findByIsbn(bookISBN);
+        if (copies.isEmpty()) {
+            completeBookEntry(bookTitle, bookAuthor, bookISBN);
+            return;
+        }
+
+        sendMessage("This ISBN is already in the catalog:");
+        for (LibraryRecord copy : copies) {
+            sendMessage("  [" + copy.getRecordId() + "] " + copy.getBookTitle() + " - " + copy.getStatus());
+        }
+        prompt("Create another copy? (y/n):", answer -> {
+            if (answer.trim().equalsIgnoreCase("y")) {
+                completeBookEntry(bookTitle, bookAuthor, bookISBN);
+            } else {
+                sendMessage("Book entry not created.");
+            }
+        });
+    }
+
+    private void completeBookEntry(String bookTitle, String bookAuthor, String bookISBN) {
+        begin(CREATE_BOOK);
+        // Generate unique record ID
+        String recordId = Provider.recordIds().next("BOOK");
+
+        // Create book entry
+        LibraryRecord bookEntry = new LibraryRecord(
+            recordId,
+            loggedInUser.getId(),
+            bookTitle,
+            bookAuthor,
+            bookISBN
+        );
+
+        Lock publishing = Provider.publishLock();
+        publishing.lock();
+        try {
+            // Add to records list - refused if another record already has this ID
+            if (!libraryRecords.add(bookEntry)) {
+                sendMessage("ERROR: Could not create book entry. Please try again.");
+                return;
+            }
+
+            // Log the change before acknowledging it - an entry that cannot be saved is taken back
+            try {
+                Provider.logOperation(OperationLog.Entry.recordCreated(bookEntry));
+            } catch (IOException e) {
+                libraryRecords.remove(recordId);
+                sendMessage("ERROR: Could not save book entry. Please try again.");
+                return;
+            }
+        } finally {
+            publishing.unlock();
+        }
+
+        sendMessage("SUCCESS: Book entry created!");
+        sendMessage("Book ID: " + recordId);
+        sendMessage("Title: " + bookTitle);
+        sendMessage("Author: " + bookAuthor);
+        sendMessage("ISBN: " + bookISBN);
+        sendMessage("Status: AVAILABLE");
+        ServerLog.info("Book entry created: " + recordId + " by " + loggedInUser.getId());
+    }
+
+    // Handle bulk import of a CSV/TSV catalog file that is on the server (librarians only)
+    private void handleImportCatalog() {
+        sendMessage("\n=== IMPORT CATALOG FILE ===");
+        sendMessage("Columns: title, author, isbn - CSV or TSV, with or without a header row");
+        prompt("Enter the file path on the server (relative to " + IMPORT_DIRECTORY + "):", this::completeImport);
+    }
+
+    private void completeImport(String fileName) {
+        begin(IMPORT);
+        if (!isValidInput(fileName)) {
+            sendMessage("ERROR: File path cannot be empty.");
+            return;
+        }
+
+        // Only files under the import directory can be read
+        Path base = IMPORT_DIRECTORY.toAbsolutePath().normalize();
+        Path file = base.resolve(fileName.trim()).normalize();
+        if (!file.startsWith(base) || !Files.isRegularFile(file)) {
+            sendMessage("ERROR: No such file in the import directory.");
+            return;
+        }
+
+        // Imports can take minutes - they run on the import thread and the session picks up the report
+        CatalogImporter importer = new CatalogImporter(libraryRecords, Provider.recordIds(),
+                Runtime.getRuntime().availableProcessors());
+        await(importer.importFileAsync(file, loggedInUser.getId()), report -> reportImport(file, report));
+    }
+
+    private void reportImport(Path file, CatalogImporter.Report report) {
+        if (report.getFailed() > 0) {
+            sendMessage("ERROR: Import finished, but " + report.getFailed() + " books could not be saved");
+            for (String failure : report.getFailures()) {
+                sendMessage("  " + failure);
+            }
+        } else {
+            sendMessage("SUCCESS: Import finished");
+        }
+        sendMessage("Rows read: " + report.getRowsRead());
+        sendMessage("Books imported: " + report.getImported());
+        sendMessage("Rows rejected: " + report.getRejected());
+        for (String rejection : report.getRejections()) {
+            sendMessage("  " + rejection);
+        }
+        if (report.getRejected() > report.getRejections().size()) {
+            sendMessage("  ... and " + (report.getRejected() - report.getRejections().size()) + " more");
+        }
+        sendMessage(String.format("Time: %.2f s (%d rows/s)", report.getElapsedSeconds(), report.getRowsPerSecond()));
+        ServerLog.info("Catalog import by " + loggedInUser.getId() + ": " + report.getImported() + " books from " + file);
+    }
+
+    // Handle export of records to a CSV or JSON Lines file on the server (librarians only)
+    private void handleExportRecords() {
+        sendMessage("\n=== EXPORT RECORDS ===");
+        sendMessage("Filters: type=book|request status=requested|available|borrowed|returned");
+        sendMessage("         from=yyyy-MM-dd to=yyyy-MM-dd librarian=<ID>");
+        prompt("Enter filters separated by spaces (blank for all records):", this::onExportFilter);
+    }
+
+    private void onExportFilter(String text) {
+        RecordExporter.Filter filter;
+        try {
+            filter = RecordExporter.Filter.parse(text);
+        } catch (IllegalArgumentException e) {
+            sendMessage("ERROR: " + e.getMessage());
+            return;
+        }
+        prompt("Enter the file name (relative to " + EXPORT_DIRECTORY + ", .csv or .jsonl):",
+                fileName -> completeExport(filter, fileName));
+    }
+
+    private void completeExport(RecordExporter.Filter filter, String fileName) {
+        begin(EXPORT);
+        if (!isValidInput(fileName)) {
+            sendMessage("ERROR: File name cannot be empty.");
+            return;
+        }
+
+        // Only files under the export directory can be written
+        Path base = EXPORT_DIRECTORY.toAbsolutePath().normalize();
+        Path file = base.resolve(fileName.trim()).normalize();
+        if (!file.startsWith(base) || file.equals(base) || Files.isDirectory(file)) {
+            sendMessage("ERROR: The file must be inside the export directory.");
+            return;
+        }
+
+        // The export runs on its own thread from a snapshot taken now - this session waits without holding a thread
+        RecordExporter exporter = new RecordExporter(RecordExporter.Format.forFileName(file.toString()), filter);
+        long start = System.nanoTime();
+        await(exporter.exportFileAsync(libraryRecords, file), written -> {
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+            sendMessage("SUCCESS: Export finished");
+            sendMessage("Records written: " + written);
+            sendMessage("File: " + file);
+            sendMessage(String.format("Time: %.2f s", seconds));
+            ServerLog.info("Record export by " + loggedInUser.getId() + ": " + written + " records to " + file);
+        });
+    }
+
+    // Handle the server's own figures (librarians only) - the same ones JMX shows
+    private void handleServerStats() {
+        sendMessage("\n=== SERVER STATS ===");
+        sendMessage("Uptime: " + ServerMetrics.getUptimeSeconds() + " s");
+        sendMessage("Active connections: " + ServerMetrics.getActiveConnections());
+        sendMessage("Active session threads: " + ServerMetrics.getActiveSessionThreads());
+        sendMessage("JVM threads: " + ServerMetrics.getJvmThreads());
+        sendMessage("Log lines dropped: " + ServerLog.getDropped());
+        sendMessage(String.format("\n%-22s %8s %7s %9s %9s %9s %9s %9s",
+                "Operation", "Count", "Errors", "Mean ms", "p50 ms", "p99 ms", "p99.9 ms", "Max ms"));
+        for (OperationSnapshot stats : ServerMetrics.snapshot()) {
+            if (stats.getCount() == 0) {
+                continue;
+            }
+            sendMessage(String.format("%-22s %8d %7d %9.2f %9.2f %9.2f %9.2f %9.2f",
+                    stats.getName(), stats.getCount(), stats.getErrors(), stats.getMeanMillis(),
+                    stats.getP50Millis(), stats.getP99Millis(), stats.getP999Millis(), stats.getMaxMillis()));
+        }
+    }
+
+    // Handle viewing records created by current user
+    private void handleViewMyRecords() {
+        sendMessage("\n=== MY RECORDS ===");
+        // Only records created by this user, straight from the creator index
+        showRecordPage(RecordStore.View.CREATED_BY, fetchPage(RecordStore.View.CREATED_BY, null), 0);
+    }
+
+    // Handle viewing all records (librarians only)
+    private void handleViewAllRecords() {
+        sendMessage("\n=== ALL LIBRARY RECORDS ===");
+        showRecordPage(RecordStore.View.ALL, fetchPage(RecordStore.View.ALL, null), 0);
+    }
+
+    // Handle catalog search by title or author words
+    private void handleSearchCatalog() {
+        sendMessage("\n=== SEARCH CATALOG ===");
+        prompt("Enter title or author words (partial words match too):", this::completeCatalogSearch);
+    }
+
+    private void completeCatalogSearch(String query) {
+        begin(SEARCH);
+        if (!isValidInput(query)) {
+            sendMessage("ERROR: Search cannot be empty.");
+            return;
+        }
+
+        // Ranked straight from the title/author index - no scan of the records
+        int count = 0;
+        for (LibraryRecord record : libraryRecords.searchCatalog(query, SEARCH_RESULTS)) {
+            sendMessage("\n[" + record.getRecordId() + "] " + record.getBookTitle());
+            sendMessage("  Author: " + record.getBookAuthor());
+            sendMessage("  ISBN: " + record.getBookISBN());
+            sendMessage("  Status: " + record.getStatus());
+            count++;
+        }
+
+        if (count == 0) {
+            sendMessage("No matching books found.");
+        } else {
+            sendMessage("\nBest " + count + " matches shown (up to " + SEARCH_RESULTS + ")");
+        }
+    }
+
+    // Handle ISBN lookup (librarians only) - a scanned barcode, or a prefix ending in * to browse
+    private void handleIsbnLookup() {
+        sendMessage("\n=== LOOKUP BY ISBN ===");
+        prompt("Scan or enter an ISBN (end with * to browse a prefix, e.g. 978-0-14*):", this::completeIsbnLookup);
+    }
+
+    private void completeIsbnLookup(String input) {
+        begin(ISBN_LOOKUP);
+        String isbn = input.trim();
+        List<LibraryRecord> copies;
+        if (isbn.endsWith("*")) {
+            copies = libraryRecords.findByIsbnPrefix(isbn.substring(0, isbn.length() - 1), SEARCH_RESULTS);
+        } else if (IsbnIndex.normalize(isbn) == null) {
+            sendMessage("ERROR: Not a valid ISBN-10 or ISBN-13.");
+            return;
+        } else {
+            copies = libraryRecords.findByIsbn(isbn);
+        }
+
+        for (LibraryRecord copy : copies) {
+            sendMessage("\n[" + copy.getRecordId() + "] " + copy.getBookTitle());
+            sendMessage("  Author: " + copy.getBookAuthor());
+            sendMessage("  ISBN: " + copy.getBookISBN());
+            sendMessage("  Status: " + copy.getStatus());
+        }
+
+        if (copies.isEmpty()) {
+            sendMessage("No books found with that ISBN.");
+        } else {
+            sendMessage("\n" + copies.size() + " book(s) found");
+        }
+    }
+
+    // Handle assigning a borrow request to current librarian
+    private void handleAssignBorrowRequest() {
+        sendMessage("\n=== ASSIGN BORROW REQUEST ===");
+
+        // First, show all unassigned borrow requests
+        sendMessage("Available borrow requests:");
+        int count = 0;
+        for (LibraryRecord record : libraryRecords.findPendingRequests()) {
+            sendMessage("\n[" + record.getRecordId() + "]");
+            sendMessage("  Created by: " + record.getCreatorId());
+            sendMessage("  Date: " + record.getFormattedDate());
+            count++;
+        }
+
+        if (count == 0) {
+            sendMessage("No unassigned borrow requests available.");
+            return;
+        }
+
+        // Ask for record ID to assign
+        prompt("\nEnter the Record ID to assign to yourself:", this::completeAssignment);
+    }
+
+    private void completeAssignment(String recordId) {
+        begin(ASSIGN);
+        // Logged before it is applied, so the request only changes once the assignment is durable
+        String librarianId = loggedInUser.getId();
+        RecordStore.AssignResult result;
+        try {
+            result = libraryRecords.assign(recordId, librarianId,
+                    apply -> Provider.logThenApply(OperationLog.Entry.recordAssigned(recordId, librarianId), apply));
+        } catch (IOException e) {
+            sendMessage("ERROR: Could not save the assignment. The request is still open.");
+            return;
+        }
+        switch (result) {
+        case NOT_FOUND:
+            sendMessage("ERROR: Record ID not found.");
+            return;
+        case NOT_BORROW_REQUEST:
+            sendMessage("ERROR: This is not a borrow request.");
+            return;
+        case ALREADY_PROCESSED:
+            sendMessage("ERROR: This request is already processed.");
+            return;
+        case ASSIGNED:
+            break;
+        }
+
+        sendMessage("SUCCESS: Borrow request assigned!");
+        sendMessage("Record ID: " + recordId);
+        sendMessage("Assigned to: " + loggedInUser.getId());
+        sendMessage("Status: " + libraryRecords.get(recordId).getStatus());
+        ServerLog.info("Request " + recordId + " assigned to " + loggedInUser.getId());
+    }
+
+    // Handle viewing records assigned to current librarian
+    private void handleViewAssignedRecords() {
+        sendMessage("\n=== RECORDS ASSIGNED TO ME ===");
+        // Only records assigned to this librarian, straight from the librarian index
+        showRecordPage(RecordStore.View.ASSIGNED_TO, fetchPage(RecordStore.View.ASSIGNED_TO, null), 0);
+    }
+
+    private RecordStore.Page fetchPage(RecordStore.View view, String cursor) {
+        begin(view == RecordStore.View.ALL ? VIEW_ALL_RECORDS
+                : view == RecordStore.View.ASSIGNED_TO ? VIEW_ASSIGNED : VIEW_MY_RECORDS);
+        String ownerId = view == RecordStore.View.ALL ? null : loggedInUser.getId();
+        return libraryRecords.page(view, ownerId, cursor, PAGE_SIZE);
+    }
+
+    // Show one page of a listing - offset is how many records come before it, or -1 when
+    // the page was reached from a record ID and its position was not counted
+    private void showRecordPage(RecordStore.View view, RecordStore.Page page, int offset) {
+        if (page.getRecords().isEmpty()) {
+            if (view == RecordStore.View.ALL) {
+                sendMessage("No records in the system.");
+            } else if (view == RecordStore.View.ASSIGNED_TO) {
+                sendMessage("No records assigned to you.");
+            } else {
+                sendMessage("No records found.");
+            }
+            return;
+        }
+
+        int count = Math.max(0, offset);
+        for (LibraryRecord record : page.getRecords()) {
+            sendMessage("\n--- Record " + (count + 1) + " ---");
+            sendMessage("Record ID: " + record.getRecordId());
+            sendMessage("Type: " + record.getRecordType());
+            if (view != RecordStore.View.CREATED_BY) {
+                sendMessage("Created by: " + record.getCreatorId());
+            }
+            sendMessage("Status: " + record.getStatus());
+            sendMessage("Date: " + record.getFormattedDate());
+
+            // Show book details if it's a book entry
+            if (view != RecordStore.View.CREATED_BY
+                    && record.getRecordType() == LibraryRecord.RecordType.NEW_BOOK_ENTRY) {
+                sendMessage("Title: " + record.getBookTitle());
+                sendMessage("Author: " + record.getBookAuthor());
+                sendMessage("ISBN: " + record.getBookISBN());
+            }
+
+            if (view != RecordStore.View.ASSIGNED_TO && !record.getAssignedLibrarianId().isEmpty()) {
+                sendMessage("Assigned to: " + record.getAssignedLibrarianId());
+            }
+
+            count++;
+        }
+
+        // Everything fitted on one page - nothing to navigate
+        if (!page.hasNext() && !page.hasPrevious() && offset == 0) {
+            sendMessage((view == RecordStore.View.ASSIGNED_TO ? "\nTotal assigned records: " : "\nTotal records: ")
+                    + count);
+            return;
+        }
+
+        if (offset < 0) {
+            sendMessage("\nShowing " + count + " records from " + page.getRecords().get(0).getRecordId());
+        } else {
+            sendMessage("\nShowing records " + (offset + 1) + "-" + count);
+        }
+        StringBuilder options = new StringBuilder("\n");
+        if (page.hasNext()) {
+            options.append("N=Next page, ");
+        }
+        if (page.hasPrevious()) {
+            options.append("P=Previous page, ");
+        }
+        options.append("G <Record ID>=Go to record, Q=Back to menu:");
+        prompt(options.toString(), choice -> onPageChoice(view, page, offset, choice));
+    }
+
+    private void onPageChoice(RecordStore.View view, RecordStore.Page page, int offset, String choice) {
+        String command = choice.trim();
+        if (command.equalsIgnoreCase("N") && page.hasNext()) {
+            int nextOffset = offset < 0 ? -1 : offset + page.getRecords().size();
+            showRecordPage(view, fetchPage(view, page.getNextCursor()), nextOffset);
+        } else if (command.equalsIgnoreCase("P") && page.hasPrevious()) {
+            RecordStore.Page previous = fetchPage(view, page.getPreviousCursor());
+            int previousOffset = offset < 0 && previous.hasPrevious() ? -1 : Math.max(0, offset - previous.getRecords().size());
+            showRecordPage(view, previous, previousOffset);
+        } else if (command.length() > 1 && (command.charAt(0) == 'G' || command.charAt(0) == 'g')) {
+            // Resume from a record - its position in the listing is not counted, that would walk every record before it
+            String cursor = libraryRecords.cursorAt(command.substring(1).trim());
+            if (cursor == null) {
+                sendMessage("ERROR: Record ID not found.");
+                return;
+            }
+            showRecordPage(view, fetchPage(view, cursor), -1);
+        }
+    }
+
+    // Ask the client for input - the answer is passed to next
+    private void prompt(String message, Consumer<String> next) {
+        response.prompt(message);
+        ServerLog.debug("server> ", message);
+        pendingInput = next;
+    }
+
+    // Queue a message for the client - it goes out with the rest of the screen
+    private void sendMessage(String msg) {
+        if (msg.startsWith("ERROR")) {
+            operationFailed = true;
+        }
+        response.line(msg);
+        ServerLog.debug("server> ", msg);
+    }
+
+    // Deliver everything collected for this interaction as one frame
+    private void flush() {
+        if (!response.isEmpty()) {
+            output.deliver(response.build());
+        }
+    }
+
+    // validate that input is not empty
+    private boolean isValidInput(String input) {
+        return input != null && !input.trim().isEmpty();
+    }
+}
@@ -0,0 +1,125 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import models.User;
+
+/**
+ * CredentialVerifier - Checks and hashes passwords away from the sessions
+ * Password hashes are slow on purpose, so they run on a small pool of
+ * their own with a bounded queue. A login storm can fill that queue but
+ * cannot take CPU from the threads serving everyone else; once the queue
+ * is full, further attempts are turned away at once as busy.
+ *
+ * Failed attempts are counted per account and per client address, and a
+ * locked-out attempt is refused before it reaches the pool. Unknown
+ * emails are checked against a dummy hash so they take as long as real
+ * ones. A login that matches a plain text or weaker hash returns a fresh
+ * hash for the caller to store, so older accounts are upgraded as their
+ * owners log in.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class CredentialVerifier {
+
+    private static final int ACCOUNT_FAILURE_LIMIT = 5;
+    private static final int ADDRESS_FAILURE_LIMIT = 30;
+    private static final long FAILURE_WINDOW_MILLIS = 15 * 60 * 1000L;
+    private static final String BUSY_MESSAGE = "Server is busy. Please try again shortly.";
+
+    // Outcome of a password check
+    public static final class LoginResult {
+        public enum Outcome {
+            SUCCESS,
+            FAILED,
+            LOCKED
+        }
+
+        private final Outcome outcome;
+        private final User user;
+        private final String upgradedHash;
+        private final long retryAfterMillis;
+
+        private LoginResult(Outcome outcome, User user, String upgradedHash, long retryAfterMillis) {
+            this.outcome = outcome;
+            this.user = user;
+            this.upgradedHash = upgradedHash;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public Outcome getOutcome() { return outcome; }
+        public User getUser() { return user; }
+
+        // A new hash to store for the user, or null if the stored one is current
+        public String getUpgradedHash() { return upgradedHash; }
+
+        public long getRetryAfterSeconds() {
+            return (retryAfterMillis + 999) / 1000;
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final LoginThrottle accounts = new LoginThrottle(ACCOUNT_FAILURE_LIMIT, FAILURE_WINDOW_MILLIS);
+    private final LoginThrottle addresses = new LoginThrottle(ADDRESS_FAILURE_LIMIT, FAILURE_WINDOW_MILLIS);
+    private final String dummyHash;
+
+    public CredentialVerifier(int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), task -> {
+                    Thread thread = new Thread(task, "credential-verifier-" + counter.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.dummyHash = PasswordHasher.hash("not a real password");
+    }
+
+    // Log in by email - the user is looked up here so unknown emails cost the same as known ones
+    public CompletableFuture<LoginResult> login(UserDirectory users, String email, String password, String address) {
+        return check(users.findByEmail(email), UserDirectory.normalizeEmail(email), password, address);
+    }
+
+    // Re-check a logged-in user's password, e.g. before changing it
+    public CompletableFuture<LoginResult> checkPassword(User user, String password, String address) {
+        return check(user, UserDirectory.normalizeEmail(user.getEmail()), password, address);
+    }
+
+    // Hash a new password on the pool
+    public CompletableFuture<String> hash(String password) {
+        return submit(() -> PasswordHasher.hash(password));
+    }
+
+    private CompletableFuture<LoginResult> check(User user, String account, String password, String address) {
+        long wait = Math.max(accounts.retryAfterMillis(account), addresses.retryAfterMillis(address));
+        if (wait > 0) {
+            return CompletableFuture.completedFuture(new LoginResult(LoginResult.Outcome.LOCKED, null, null, wait));
+        }
+
+        return submit(() -> {
+            String stored = user == null ? dummyHash : user.getPassword();
+            if (!PasswordHasher.verify(password, stored) || user == null) {
+                accounts.recordFailure(account);
+                addresses.recordFailure(address);
+                return new LoginResult(LoginResult.Outcome.FAILED, null, null, 0);
+            }
+            accounts.reset(account);
+            String upgraded = PasswordHasher.needsRehash(stored) ? PasswordHasher.hash(password) : null;
+            return new LoginResult(LoginResult.Outcome.SUCCESS, user, upgraded, 0);
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, pool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException(BUSY_MESSAGE));
+        }
+    }
+}
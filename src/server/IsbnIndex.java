@@ -0,0 +1,175 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import models.LibraryRecord;
+
+/**
+ * IsbnIndex - Book entries by ISBN
+ * ISBNs are reduced to one canonical ISBN-13 key: hyphens and spaces are
+ * dropped, ISBN-10s are converted, and both check digits are verified.
+ * A hash map gives a scan one point lookup, and a sorted map of the same
+ * keys lets librarians browse everything under a publisher prefix.
+ * Several copies of a book share an ISBN, so each key holds the record
+ * IDs of its copies in a small array that is replaced when a copy is
+ * added - most ISBNs have one copy, and a map per ISBN would cost several
+ * times the memory of the ID itself.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class IsbnIndex {
+
+    // canonical ISBN-13 -> record IDs, plus the same keys in order for prefix scans
+    private final ConcurrentHashMap<String, String[]> byIsbn = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<String> sortedIsbns = new ConcurrentSkipListSet<>();
+
+    // Index a new record - non-books and ISBNs that fail their check digit are skipped
+    public void add(LibraryRecord record) {
+        if (record.getRecordType() != LibraryRecord.RecordType.NEW_BOOK_ENTRY) {
+            return;
+        }
+        String isbn = normalize(record.getBookISBN());
+        if (isbn == null) {
+            return;
+        }
+        String recordId = record.getRecordId();
+        String[] copies = byIsbn.merge(isbn, new String[] { recordId }, (existing, added) -> {
+            String[] more = Arrays.copyOf(existing, existing.length + 1);
+            more[existing.length] = recordId;
+            return more;
+        });
+        if (copies.length == 1) {
+            sortedIsbns.add(isbn);
+        }
+    }
+
+    // Take a record back out, e.g. a book whose creation could not be saved
+    public void remove(LibraryRecord record) {
+        if (record.getRecordType() != LibraryRecord.RecordType.NEW_BOOK_ENTRY) {
+            return;
+        }
+        String isbn = normalize(record.getBookISBN());
+        if (isbn == null) {
+            return;
+        }
+        String recordId = record.getRecordId();
+        byIsbn.computeIfPresent(isbn, (key, copies) -> {
+            String[] rest = Arrays.stream(copies).filter(id -> !id.equals(recordId)).toArray(String[]::new);
+            if (rest.length == 0) {
+                sortedIsbns.remove(key);
+                return null;
+            }
+            return rest;
+        });
+    }
+
+    // IDs of the copies with this ISBN, in any accepted form
+    public List<String> find(String isbn) {
+        String key = normalize(isbn);
+        String[] copies = key == null ? null : byIsbn.get(key);
+        return copies == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(copies));
+    }
+
+    // IDs of copies whose ISBN starts with a prefix, in ISBN order
+    public List<String> findByPrefix(String prefix, int limit) {
+        String key = canonicalPrefix(prefix);
+        List<String> recordIds = new ArrayList<>();
+        if (key == null) {
+            return recordIds;
+        }
+        for (String isbn : sortedIsbns.subSet(key, true, key + Character.MAX_VALUE, false)) {
+            for (String recordId : byIsbn.getOrDefault(isbn, new String[0])) {
+                if (recordIds.size() == limit) {
+                    return recordIds;
+                }
+                recordIds.add(recordId);
+            }
+        }
+        return recordIds;
+    }
+
+    // Canonical ISBN-13, or null if the input is not a valid ISBN-10 or ISBN-13
+    public static String normalize(String isbn) {
+        String compact = compact(isbn);
+        if (compact == null) {
+            return null;
+        }
+        if (compact.length() == 13 && isDigits(compact)) {
+            return isbn13CheckDigit(compact.substring(0, 12)) == compact.charAt(12) ? compact : null;
+        }
+        if (compact.length() == 10 && isDigits(compact.substring(0, 9))) {
+            if (isbn10CheckDigit(compact.substring(0, 9)) != compact.charAt(9)) {
+                return null;
+            }
+            String body = "978" + compact.substring(0, 9);
+            return body + isbn13CheckDigit(body);
+        }
+        return null;
+    }
+
+    // A prefix that cannot be the start of an ISBN-13 is taken as the start of an ISBN-10
+    static String canonicalPrefix(String prefix) {
+        String compact = compact(prefix);
+        if (compact == null || compact.isEmpty() || !isDigits(compact)) {
+            return null;
+        }
+        if (couldStartIsbn13(compact)) {
+            return compact;
+        }
+        return "978" + compact;
+    }
+
+    // "9" and "97" already cover every ISBN-13 and every 978 form of an ISBN-10 they could mean
+    private static boolean couldStartIsbn13(String digits) {
+        if (digits.length() < 3) {
+            return "97".startsWith(digits);
+        }
+        return digits.startsWith("978") || digits.startsWith("979");
+    }
+
+    // Drop hyphens and spaces, upper-case a trailing x
+    private static String compact(String isbn) {
+        if (isbn == null) {
+            return null;
+        }
+        StringBuilder compact = new StringBuilder(13);
+        for (int i = 0; i < isbn.length(); i++) {
+            char c = isbn.charAt(i);
+            if (c != '-' && !Character.isWhitespace(c)) {
+                compact.append(Character.toUpperCase(c));
+            }
+        }
+        return compact.toString();
+    }
+
+    private static boolean isDigits(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char isbn10CheckDigit(String first9) {
+        int sum = 0;
+        for (int i = 0; i < 9; i++) {
+            sum += (10 - i) * (first9.charAt(i) - '0');
+        }
+        int check = (11 - sum % 11) % 11;
+        return check == 10 ? 'X' : (char) ('0' + check);
+    }
+
+    private static char isbn13CheckDigit(String first12) {
+        int sum = 0;
+        for (int i = 0; i < 12; i++) {
+            sum += (i % 2 == 0 ? 1 : 3) * (first12.charAt(i) - '0');
+        }
+        return (char) ('0' + (10 - sum % 10) % 10);
+    }
+}
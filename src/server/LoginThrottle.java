@@ -0,0 +1,66 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LoginThrottle - Counts failed logins per key and locks the key out
+ * Each key (an account's email or a client address) gets a fixed window
+ * that starts with its first failure. Once the window holds the limit of
+ * failures, further attempts are refused until it ends. A refused attempt
+ * costs a map lookup, not a password hash.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class LoginThrottle {
+
+    // Expired windows are swept out after this many failures are recorded
+    private static final int SWEEP_INTERVAL = 1024;
+
+    private static final class Window {
+        final long start;
+        final int failures;
+
+        Window(long start, int failures) {
+            this.start = start;
+            this.failures = failures;
+        }
+    }
+
+    private final int limit;
+    private final long windowMillis;
+    private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+    private final AtomicInteger recorded = new AtomicInteger();
+
+    public LoginThrottle(int limit, long windowMillis) {
+        this.limit = Math.max(1, limit);
+        this.windowMillis = windowMillis;
+    }
+
+    // Milliseconds until the key may try again, or 0 if it may try now
+    public long retryAfterMillis(String key) {
+        Window window = windows.get(key);
+        if (window == null || window.failures < limit) {
+            return 0;
+        }
+        long remaining = window.start + windowMillis - System.currentTimeMillis();
+        return Math.max(0, remaining);
+    }
+
+    public void recordFailure(String key) {
+        long now = System.currentTimeMillis();
+        windows.compute(key, (k, window) -> window == null || now - window.start >= windowMillis
+                ? new Window(now, 1)
+                : new Window(window.start, window.failures + 1));
+
+        if (recorded.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            windows.values().removeIf(window -> now - window.start >= windowMillis);
+        }
+    }
+
+    // A successful login clears the key's failures
+    public void reset(String key) {
+        windows.remove(key);
+    }
+}
@@ -0,0 +1,282 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import models.LibraryRecord;
+import models.User;
+
+/**
+ * ModelCodec - Compact binary form of User and LibraryRecord
+ * Replaces default Java serialization for snapshots and log entries: no
+ * class descriptors, enums as ordinals, dates as epoch seconds, and each
+ * user or librarian ID written once per stream and referred to by number
+ * after that.
+ *
+ *   user   := name, id*, email, password, department, role
+ *   record := type, recordId, epochSecond, nanos, creatorId*, status,
+ *             librarianId*, title, author, isbn
+ *   string := varint (byteCount + 1) then UTF-8 bytes - 0 means null
+ *   id*    := varint 0 then a string the first time, varint n for the n-th ID after that
+ *
+ * A users snapshot starts with USERS_MAGIC and VERSION; a log payload
+ * starts with VERSION. Both can be told apart from the Java-serialized
+ * form they replace, which always starts with 0xACED.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public final class ModelCodec {
+
+    public static final int VERSION = 1;
+
+    private static final int USERS_MAGIC = 0x4C4D5355;
+    private static final User.Role[] ROLES = User.Role.values();
+    private static final LibraryRecord.RecordType[] RECORD_TYPES = LibraryRecord.RecordType.values();
+    private static final LibraryRecord.Status[] STATUSES = LibraryRecord.Status.values();
+
+    private ModelCodec() {
+    }
+
+    // Writes models to a stream, remembering the IDs it has already written
+    public static final class Writer {
+        private final DataOutputStream out;
+        private final HashMap<String, Integer> ids = new HashMap<>();
+
+        public Writer(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        public void writeUser(User user) throws IOException {
+            writeString(user.getName());
+            writeId(user.getId());
+            writeString(user.getEmail());
+            writeString(user.getPassword());
+            writeString(user.getDepartmentName());
+            out.writeByte(user.getRole().ordinal());
+        }
+
+        public void writeRecord(LibraryRecord record) throws IOException {
+            LocalDateTime date = record.getDate();
+            out.writeByte(record.getRecordType().ordinal());
+            writeString(record.getRecordId());
+            writeVarint(zigzag(date.toEpochSecond(ZoneOffset.UTC)));
+            writeVarint(date.getNano());
+            writeId(record.getCreatorId());
+            out.writeByte(record.getStatus().ordinal());
+            writeId(record.getAssignedLibrarianId());
+            writeString(record.getBookTitle());
+            writeString(record.getBookAuthor());
+            writeString(record.getBookISBN());
+        }
+
+        public void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+
+        public void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length + 1L);
+            out.write(bytes);
+        }
+
+        public void writeId(String id) throws IOException {
+            Integer number = id == null ? null : ids.get(id);
+            if (number != null) {
+                writeVarint(number);
+                return;
+            }
+            writeVarint(0);
+            writeString(id);
+            if (id != null) {
+                ids.put(id, ids.size() + 1);
+            }
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    // Reads what a Writer wrote, in the same order
+    public static final class Reader {
+        private final DataInputStream in;
+        private final List<String> ids = new ArrayList<>();
+
+        public Reader(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        public User readUser() throws IOException {
+            String name = readString();
+            String id = readId();
+            String email = readString();
+            String password = readString();
+            String departmentName = readString();
+            return new User(name, id, email, password, departmentName, ROLES[in.readUnsignedByte()]);
+        }
+
+        public LibraryRecord readRecord() throws IOException {
+            LibraryRecord.RecordType recordType = RECORD_TYPES[in.readUnsignedByte()];
+            String recordId = readString();
+            long epochSecond = unzigzag(readVarint());
+            int nanos = (int) readVarint();
+            String creatorId = readId();
+            LibraryRecord.Status status = STATUSES[in.readUnsignedByte()];
+            String librarianId = readId();
+            String title = readString();
+            String author = readString();
+            String isbn = readString();
+            return new LibraryRecord(recordType, recordId, LocalDateTime.ofEpochSecond(epochSecond, nanos, ZoneOffset.UTC),
+                    creatorId, status, librarianId, title, author, isbn);
+        }
+
+        public long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Varint too long");
+        }
+
+        public String readString() throws IOException {
+            long length = readVarint();
+            if (length == 0) {
+                return null;
+            }
+            if (length - 1 > Integer.MAX_VALUE - 8) {
+                throw new IOException("String too long: " + (length - 1));
+            }
+            byte[] bytes = new byte[(int) (length - 1)];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public String readId() throws IOException {
+            long number = readVarint();
+            if (number == 0) {
+                String id = readString();
+                if (id != null) {
+                    ids.add(id);
+                }
+                return id;
+            }
+            if (number > ids.size()) {
+                throw new IOException("Unknown ID reference: " + number);
+            }
+            return ids.get((int) number - 1);
+        }
+    }
+
+    // Users snapshot - header, count, then each user
+    public static void writeUsers(OutputStream out, Collection<User> users) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(USERS_MAGIC);
+        data.writeByte(VERSION);
+        Writer writer = new Writer(data);
+        writer.writeVarint(users.size());
+        for (User user : users) {
+            writer.writeUser(user);
+        }
+        writer.flush();
+    }
+
+    public static List<User> readUsers(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != USERS_MAGIC) {
+            throw new IOException("Not a users snapshot");
+        }
+        checkVersion(data.readUnsignedByte());
+        Reader reader = new Reader(data);
+        long count = reader.readVarint();
+        List<User> users = new ArrayList<>((int) Math.min(count, 1 << 16));
+        for (long i = 0; i < count; i++) {
+            users.add(reader.readUser());
+        }
+        return users;
+    }
+
+    // Single-model payloads for log entries
+    public static byte[] encodeUser(User user) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        bytes.write(VERSION);
+        Writer writer = new Writer(bytes);
+        writer.writeUser(user);
+        writer.flush();
+        return bytes.toByteArray();
+    }
+
+    public static byte[] encodeRecord(LibraryRecord record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        bytes.write(VERSION);
+        Writer writer = new Writer(bytes);
+        writer.writeRecord(record);
+        writer.flush();
+        return bytes.toByteArray();
+    }
+
+    public static User decodeUser(byte[] payload) throws IOException {
+        return payloadReader(payload).readUser();
+    }
+
+    public static LibraryRecord decodeRecord(byte[] payload) throws IOException {
+        return payloadReader(payload).readRecord();
+    }
+
+    // True if the stream holds default Java serialization - checked without consuming anything
+    public static boolean isJavaSerialized(InputStream in) throws IOException {
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        return first == 0xAC && second == 0xED;
+    }
+
+    public static boolean isJavaSerialized(byte[] payload) {
+        return payload.length >= 2 && (payload[0] & 0xFF) == 0xAC && (payload[1] & 0xFF) == 0xED;
+    }
+
+    private static Reader payloadReader(byte[] payload) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(payload);
+        checkVersion(in.read());
+        return new Reader(in);
+    }
+
+    private static void checkVersion(int version) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("Unsupported codec version: " + version);
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,410 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import logging.ServerLog;
+import metrics.ServerMetrics;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.Opcode;
+
+/**
+ * NioServer - Non-blocking front end for the library server
+ * A small fixed set of selector threads does all socket reads and writes.
+ * Complete protocol frames are handed to the worker executor, which drives
+ * each connection's ClientSession one event at a time, so no thread is
+ * parked waiting on an idle client.
+ *
+ * Output waiting for a slow client is counted in bytes. Past
+ * -Dlibrary.writeQueueBytes (default 256 KB), or with too many of its
+ * inputs not yet handled, the connection stops reading, so the client gets
+ * no new screens until it takes the ones it has; past
+ * -Dlibrary.writeQueueLimitBytes (default 4 MB) it is closed.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class NioServer {
+
+    private static final int READ_BUFFER_BYTES = 8 * 1024;
+
+    // Stop reading above this much queued output, start again below half of it
+    private static final long WRITE_QUEUE_PAUSE_BYTES = Long.getLong("library.writeQueueBytes", 256 * 1024);
+
+    // Stop reading while more than this many session events are waiting to run
+    private static final int MAX_PENDING_EVENTS = 32;
+
+    // Close the connection above this - always room for one more full frame after the pause
+    private static final long WRITE_QUEUE_LIMIT_BYTES = Math.max(
+            Long.getLong("library.writeQueueLimitBytes", 4 * 1024 * 1024),
+            WRITE_QUEUE_PAUSE_BYTES + FrameCodec.MAX_FRAME_BYTES + 4);
+
+    private final int port;
+    private final EventLoop[] eventLoops;
+    private final ExecutorService workers;
+    private final UserDirectory users;
+    private final RecordStore records;
+
+    public NioServer(int port, int ioThreads, ExecutorService workers, UserDirectory users, RecordStore records)
+            throws IOException {
+        this.port = port;
+        this.workers = workers;
+        this.users = users;
+        this.records = records;
+        this.eventLoops = new EventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+        }
+    }
+
+    // Accept connections on the calling thread and spread them across the event loops
+    public void run() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            Thread thread = new Thread(eventLoops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ServerLog.info("Client connected: " + channel.socket().getInetAddress().getHostAddress());
+
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        }
+    }
+
+    // One selector thread - owns the keys of the connections registered with it
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                } catch (IOException e) {
+                    ServerLog.warn("Connection error: " + e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        // Run a task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            ServerLog.error("Event loop task failed", e);
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            ServerLog.warn("Connection error: " + e.getMessage());
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // A bug handling one client must not take the loop's other clients with it
+                            ServerLog.error("Connection failed", e);
+                            connection.close();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    ServerLog.error("Event loop error", e);
+                }
+            }
+        }
+    }
+
+    // One client connection - socket work on its loop thread, session work on the workers
+    private final class Connection implements ClientSession.Output {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ClientSession session;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+
+        // Encoded frames waiting to go out, and their total size
+        private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean overflowed = new AtomicBoolean();
+
+        // Session events, run in order by at most one worker at a time
+        private final ConcurrentLinkedQueue<Runnable> sessionEvents = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingEvents = new AtomicInteger();
+        private final AtomicBoolean sessionScheduled = new AtomicBoolean();
+
+        private volatile boolean closeWhenFlushed = false;
+        private boolean greeted = false;
+        private boolean readPaused = false;
+        private boolean closed = false;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.session = new ClientSession(this, channel.socket().getInetAddress().getHostAddress(), users, records);
+            ServerMetrics.connectionOpened();
+        }
+
+        // Loop thread - read what is available and dispatch every complete frame
+        void onReadable() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            dispatchFrames();
+            if (readPaused) {
+                updateInterest();
+            }
+        }
+
+        // Loop thread - dispatch the complete frames in the read buffer, holding the rest while reading is paused
+        private void dispatchFrames() throws IOException {
+            readBuffer.flip();
+            Frame frame;
+            while (!closed && !readPaused && (frame = FrameCodec.decode(readBuffer)) != null) {
+                onFrame(frame);
+                pauseIfBacklogged();
+            }
+            readBuffer.compact();
+
+            // A frame bigger than the buffer is still arriving - make room for it
+            if (!readPaused && !readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= FrameCodec.MAX_FRAME_BYTES + 4) {
+                    throw new IOException("Frame too large");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, FrameCodec.MAX_FRAME_BYTES + 4));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        // Loop thread - the first frame must be the client's HELLO
+        private void onFrame(Frame frame) {
+            if (closeWhenFlushed) {
+                return;
+            }
+            if (!greeted) {
+                if (frame.getOpcode() != Opcode.HELLO || !frame.getText().equals(String.valueOf(FrameCodec.VERSION))) {
+                    enqueue(FrameCodec.encode(Frame.of(Opcode.ERROR,
+                            "Unsupported protocol version. Server speaks version " + FrameCodec.VERSION)));
+                    closeWhenFlushed = true;
+                    requestWrite();
+                    return;
+                }
+                greeted = true;
+                enqueue(FrameCodec.encode(Frame.of(Opcode.HELLO, String.valueOf(FrameCodec.VERSION))));
+                String resumeToken = frame.getFields().size() > 1 ? frame.getFields().get(1) : null;
+                dispatch(() -> session.start(resumeToken));
+                return;
+            }
+
+            switch (frame.getOpcode()) {
+            case INPUT:
+                String input = frame.getText();
+                dispatch(() -> session.onInput(input));
+                break;
+            case CLOSE:
+                close();
+                break;
+            default:
+                // Nothing else is valid from a client - ignore it
+                break;
+            }
+        }
+
+        // Loop thread - write queued frames until the socket buffer fills
+        void onWritable() throws IOException {
+            ByteBuffer frame;
+            while ((frame = writeQueue.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    break;
+                }
+                writeQueue.poll();
+                queuedBytes.addAndGet(-frame.limit());
+            }
+
+            resumeIfCaughtUp();
+            if (closed) {
+                return;
+            }
+            if (writeQueue.isEmpty() && closeWhenFlushed) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        // Worker thread - called by the session once per screen
+        @Override
+        public void deliver(Frame frame) {
+            enqueue(FrameCodec.encode(frame));
+        }
+
+        // Any thread - queue a frame, or give up on a client that has let too much pile up
+        private void enqueue(ByteBuffer frame) {
+            if (overflowed.get()) {
+                return;
+            }
+            if (queuedBytes.addAndGet(frame.limit()) > WRITE_QUEUE_LIMIT_BYTES) {
+                queuedBytes.addAndGet(-frame.limit());
+                if (overflowed.compareAndSet(false, true)) {
+                    ServerLog.warn("Closing connection: client is not reading its output");
+                    loop.execute(this::close);
+                }
+                return;
+            }
+            writeQueue.add(frame);
+        }
+
+        // Any thread - results of the session's off-thread work join its other events
+        @Override
+        public void execute(Runnable event) {
+            dispatch(event);
+        }
+
+        // Queue a session event and make sure a worker is running them
+        private void dispatch(Runnable event) {
+            pendingEvents.incrementAndGet();
+            sessionEvents.add(event);
+            if (sessionScheduled.compareAndSet(false, true)) {
+                workers.execute(this::runSessionEvents);
+            }
+        }
+
+        // Worker thread - run queued events, then ask the loop to flush the output
+        private void runSessionEvents() {
+            Runnable event;
+            while ((event = sessionEvents.poll()) != null) {
+                pendingEvents.decrementAndGet();
+                event.run();
+            }
+            if (session.isClosed() && !closeWhenFlushed) {
+                enqueue(FrameCodec.encode(Frame.of(Opcode.CLOSE)));
+                closeWhenFlushed = true;
+            }
+            loop.execute(this::requestWrite);
+
+            // An event may have arrived after the queue was found empty
+            sessionScheduled.set(false);
+            if (!sessionEvents.isEmpty() && sessionScheduled.compareAndSet(false, true)) {
+                workers.execute(this::runSessionEvents);
+            }
+        }
+
+        // Loop thread
+        private void requestWrite() {
+            try {
+                resumeIfCaughtUp();
+            } catch (IOException e) {
+                ServerLog.warn("Connection error: " + e.getMessage());
+                close();
+                return;
+            }
+            pauseIfBacklogged();
+            updateInterest();
+        }
+
+        // Loop thread - stop taking input while the client or its session is behind
+        private void pauseIfBacklogged() {
+            if (!readPaused && (queuedBytes.get() > WRITE_QUEUE_PAUSE_BYTES || pendingEvents.get() > MAX_PENDING_EVENTS)) {
+                readPaused = true;
+                ServerLog.debug("Connection backlogged - reading paused");
+            }
+        }
+
+        // Loop thread - both have caught up, take input again starting with any frames held back
+        private void resumeIfCaughtUp() throws IOException {
+            if (readPaused && !closed && queuedBytes.get() <= WRITE_QUEUE_PAUSE_BYTES / 2
+                    && pendingEvents.get() <= MAX_PENDING_EVENTS / 2) {
+                readPaused = false;
+                dispatchFrames();
+            }
+        }
+
+        // Loop thread - read unless paused, write while anything is queued
+        private void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            int ops = readPaused ? 0 : SelectionKey.OP_READ;
+            if (!writeQueue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        // Loop thread
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            ServerMetrics.connectionClosed();
+            key.cancel();
+            closeQuietly(channel);
+            writeQueue.clear();
+            queuedBytes.set(0);
+            ServerLog.debug("Connection closed");
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ServerLog.warn("Error closing connection: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import logging.ServerLog;
+
+import models.LibraryRecord;
+import models.User;
+
+/**
+ * OperationLog - Append-only write-ahead log of data changes
+ * Every mutation is appended as one small entry, so the cost of a write
+ * no longer depends on how much data the server holds. The log is replayed
+ * on top of the last snapshot at startup and emptied after each checkpoint.
+ *
+ * Entry layout: [int length][int crc32][byte type][payload]
+ *
+ * Users and records are written with ModelCodec. Entries written by older
+ * servers carry Java-serialized objects instead and are still read.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class OperationLog implements Closeable {
+
+    // Kind of change recorded by an entry
+    public enum Type {
+        USER_REGISTERED,
+        PASSWORD_UPDATED,
+        RECORD_CREATED,
+        RECORD_ASSIGNED
+    }
+
+    // A single logged change - only the fields for its type are set
+    public static final class Entry {
+        private final Type type;
+        private final User user;
+        private final LibraryRecord record;
+        private final String key;
+        private final String value;
+
+        private Entry(Type type, User user, LibraryRecord record, String key, String value) {
+            this.type = type;
+            this.user = user;
+            this.record = record;
+            this.key = key;
+            this.value = value;
+        }
+
+        public static Entry userRegistered(User user) {
+            return new Entry(Type.USER_REGISTERED, user, null, user.getId(), null);
+        }
+
+        public static Entry passwordUpdated(String userId, String passwordHash) {
+            return new Entry(Type.PASSWORD_UPDATED, null, null, userId, passwordHash);
+        }
+
+        public static Entry recordCreated(LibraryRecord record) {
+            return new Entry(Type.RECORD_CREATED, null, record, record.getRecordId(), null);
+        }
+
+        public static Entry recordAssigned(String recordId, String librarianId) {
+            return new Entry(Type.RECORD_ASSIGNED, null, null, recordId, librarianId);
+        }
+
+        public Type getType() { return type; }
+        public User getUser() { return user; }
+        public LibraryRecord getRecord() { return record; }
+
+        // User ID or record ID the change applies to
+        public String getKey() { return key; }
+
+        // New password hash or librarian ID, depending on type
+        public String getValue() { return value; }
+    }
+
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_ENTRY_BYTES = 16 * 1024 * 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+
+    public OperationLog(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.channel.position(channel.size());
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Replay every complete entry in the log, dropping any torn tail left by a crash
+    public synchronized int replay(Consumer<Entry> consumer) throws IOException {
+        int count = 0;
+        long validLength = 0;
+
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        while (true) {
+            try {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_ENTRY_BYTES) {
+                    break;
+                }
+
+                byte[] body = new byte[length];
+                in.readFully(body);
+                if (crc(body) != checksum) {
+                    break;
+                }
+
+                consumer.accept(decode(body));
+                validLength += HEADER_BYTES + length;
+                count++;
+            } catch (EOFException e) {
+                break;
+            }
+        }
+
+        // Anything after the last good entry was never acknowledged - cut it off
+        if (validLength < channel.size()) {
+            ServerLog.info("Discarding " + (channel.size() - validLength) + " bytes of incomplete log data");
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+        return count;
+    }
+
+    // Append one entry - not durable until sync() is called
+    public synchronized void append(Entry entry) throws IOException {
+        byte[] body = encode(entry);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + body.length);
+        buffer.putInt(body.length);
+        buffer.putInt(crc(body));
+        buffer.put(body);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Force appended entries to disk
+    public synchronized void sync() throws IOException {
+        channel.force(false);
+    }
+
+    // Where the next entry will be written
+    public synchronized long position() throws IOException {
+        return channel.position();
+    }
+
+    // Cut off a write that failed part-way, so later entries are not appended behind it
+    public synchronized void rollback(long position) throws IOException {
+        channel.truncate(position);
+        channel.position(position);
+        channel.force(false);
+    }
+
+    // Empty the log once its contents are covered by a snapshot
+    public synchronized void truncate() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    public synchronized long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(entry.getType().ordinal());
+
+        switch (entry.getType()) {
+        case USER_REGISTERED:
+            writePayload(out, ModelCodec.encodeUser(entry.getUser()));
+            break;
+        case RECORD_CREATED:
+            writePayload(out, ModelCodec.encodeRecord(entry.getRecord()));
+            break;
+        case PASSWORD_UPDATED:
+        case RECORD_ASSIGNED:
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+            break;
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        Type type = Type.values()[in.readUnsignedByte()];
+
+        switch (type) {
+        case USER_REGISTERED:
+            byte[] user = readPayload(in);
+            return Entry.userRegistered(ModelCodec.isJavaSerialized(user) ? (User) readObject(user)
+                    : ModelCodec.decodeUser(user));
+        case RECORD_CREATED:
+            byte[] record = readPayload(in);
+            return Entry.recordCreated(ModelCodec.isJavaSerialized(record) ? (LibraryRecord) readObject(record)
+                    : ModelCodec.decodeRecord(record));
+        case PASSWORD_UPDATED:
+            return Entry.passwordUpdated(in.readUTF(), in.readUTF());
+        case RECORD_ASSIGNED:
+            return Entry.recordAssigned(in.readUTF(), in.readUTF());
+        default:
+            throw new IOException("Unknown log entry type: " + type);
+        }
+    }
+
+    private static void writePayload(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    private static byte[] readPayload(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // Entries from before ModelCodec hold a Java-serialized object
+    private static Object readObject(byte[] bytes) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Log entry in unknown format", e);
+        }
+    }
+
+    private static int crc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,254 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import logging.ServerLog;
+
+/**
+ * PersistenceScheduler - Coalesces concurrent log writes into shared commits
+ * Mutations made by many clients within a short window are appended together
+ * and made durable with a single sync, instead of one sync per client.
+ *
+ * Modes:
+ *   SYNC         - every commit is appended and synced on the caller's thread
+ *   GROUP_COMMIT - commits are batched for up to maxLatency, callers wait for their batch
+ *   ASYNC        - commits return at once and a periodic flush makes them durable
+ *
+ * The entries of one commit are always written in the same batch. A batch
+ * that fails to append or sync is cut back off the log, so nothing its
+ * callers were told failed is replayed and later batches do not land
+ * behind a torn entry. If the log cannot be cut back, no further commits
+ * are accepted.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class PersistenceScheduler implements Closeable {
+
+    public enum DurabilityMode {
+        SYNC,
+        GROUP_COMMIT,
+        ASYNC;
+
+        // Accepts sync, group, group_commit or async in any case
+        public static DurabilityMode parse(String value) {
+            String name = value.trim().toUpperCase(Locale.ROOT);
+            return name.equals("GROUP") ? GROUP_COMMIT : valueOf(name);
+        }
+    }
+
+    // Upper bound on entries written by one batch
+    private static final int MAX_BATCH = 4096;
+
+    // A queued commit and the future its caller waits on - no entries for a flush marker
+    private static final class Pending {
+        final List<OperationLog.Entry> entries;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        Pending(List<OperationLog.Entry> entries) {
+            this.entries = entries;
+        }
+    }
+
+    private final OperationLog log;
+    private final DurabilityMode mode;
+    private final long maxLatencyMillis;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // Set when a failed batch could not be removed from the log
+    private volatile boolean failed = false;
+
+    public PersistenceScheduler(OperationLog log, DurabilityMode mode, long maxLatencyMillis) {
+        this.log = log;
+        this.mode = mode;
+        this.maxLatencyMillis = Math.max(0, maxLatencyMillis);
+
+        if (mode == DurabilityMode.SYNC) {
+            this.writer = null;
+        } else {
+            this.writer = new Thread(this::writeLoop, "persistence-writer");
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+    }
+
+    public DurabilityMode getMode() {
+        return mode;
+    }
+
+    // Commit one entry - returns once it is durable (SYNC, GROUP_COMMIT) or queued (ASYNC)
+    public void commit(OperationLog.Entry entry) throws IOException {
+        commitAll(Collections.singletonList(entry));
+    }
+
+    // Commit several entries - they share one sync whatever the mode
+    public void commitAll(List<OperationLog.Entry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        checkUsable();
+
+        if (mode == DurabilityMode.SYNC) {
+            write(entries);
+            return;
+        }
+
+        if (!running) {
+            throw new IOException("Persistence scheduler is closed");
+        }
+
+        // One Pending for the whole group, so it is written or refused as a unit
+        Pending pending = new Pending(new ArrayList<>(entries));
+        queue.add(pending);
+        if (mode == DurabilityMode.GROUP_COMMIT) {
+            await(pending.durable);
+        }
+    }
+
+    // Block until everything committed so far is durable
+    public void flush() throws IOException {
+        if (mode == DurabilityMode.SYNC) {
+            return;
+        }
+        Pending marker = new Pending(Collections.emptyList());
+        queue.add(marker);
+        await(marker.durable);
+    }
+
+    // Drain the queue and stop the writer
+    @Override
+    public void close() throws IOException {
+        if (writer == null || !running) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            running = false;
+
+            // Wake the writer so it notices the shutdown
+            queue.add(new Pending(Collections.emptyList()));
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (running) {
+            try {
+                collectBatch(batch);
+            } catch (InterruptedException e) {
+                break;
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+
+        // Anything that slipped in during shutdown still gets written
+        queue.drainTo(batch);
+        writeBatch(batch);
+    }
+
+    // Wait for work, then gather whatever arrives within the latency window
+    private void collectBatch(List<Pending> batch) throws InterruptedException {
+        if (mode == DurabilityMode.ASYNC) {
+            // Periodic flush - sleep for the interval, then take everything queued
+            Thread.sleep(Math.max(1, maxLatencyMillis));
+            queue.drainTo(batch, MAX_BATCH);
+            return;
+        }
+
+        batch.add(queue.take());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        while (batch.size() < MAX_BATCH) {
+            queue.drainTo(batch, MAX_BATCH - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || batch.size() >= MAX_BATCH) {
+                break;
+            }
+            Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+    }
+
+    // Append the batch and sync once - every caller in it is then acknowledged
+    private void writeBatch(List<Pending> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<OperationLog.Entry> entries = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            entries.addAll(pending.entries);
+        }
+        try {
+            checkUsable();
+            write(entries);
+            for (Pending pending : batch) {
+                pending.durable.complete(null);
+            }
+        } catch (IOException | RuntimeException e) {
+            ServerLog.error("Error writing operation log: " + e.getMessage());
+            for (Pending pending : batch) {
+                pending.durable.completeExceptionally(e);
+            }
+        }
+    }
+
+    // Append and sync - on failure take the partial write back off the log
+    private void write(List<OperationLog.Entry> entries) throws IOException {
+        synchronized (log) {
+            long start = log.position();
+            try {
+                for (OperationLog.Entry entry : entries) {
+                    log.append(entry);
+                }
+                log.sync();
+            } catch (IOException | RuntimeException e) {
+                try {
+                    log.rollback(start);
+                } catch (IOException rollbackError) {
+                    failed = true;
+                    ServerLog.error("Could not remove a failed write from the operation log - refusing further commits",
+                            rollbackError);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (failed) {
+            throw new IOException("Operation log is unusable after a failed write");
+        }
+    }
+
+    private static void await(CompletableFuture<Void> durable) throws IOException {
+        try {
+            durable.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Commit failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for commit", e);
+        }
+    }
+}
@@ -1,15 +1,34 @@
 package server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import javax.management.JMException;
+
+import logging.ServerLog;
+
+import metrics.OperationStats;
+import metrics.ServerMetrics;
 
 import models.LibraryRecord;
 import models.User;
@@ -23,13 +42,51 @@ import models.User;
  */
 public class Provider {
     
+    // How client sessions are scheduled onto threads
+    public enum ExecutionMode {
+        VIRTUAL,    // one virtual thread per connection - idle clients cost almost nothing
+        POOL;       // fixed pool of platform threads - extra connections wait for a free thread
+        
+        public static ExecutionMode parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+    
     private static final int PORT = 2004;
     private static final String USERS_FILE = "users.dat";
     private static final String RECORDS_FILE = "records.dat";
+    private static final String RECORDS_DIRECTORY = ".";
+    private static final String LOG_FILE = "operations.log";
+    private static final String ID_LEASE_FILE = "record-ids.lease";
+    
+    // Fold the log into a fresh snapshot once it grows past this size
+    private static final long CHECKPOINT_LOG_BYTES = 64L * 1024 * 1024;
     
     // Shared data structures - thread-safe
-    private static List<User> users = Collections.synchronizedList(new ArrayList<>());
-    private static List<LibraryRecord> records = Collections.synchronizedList(new ArrayList<>());
+    private static UserDirectory users = new UserDirectory();
+    private static RecordStore records = new RecordStore();
+    
+    // Write-ahead log of changes made since the last snapshot
+    private static OperationLog operationLog;
+    private static PersistenceScheduler persistence;
+    private static final AtomicBoolean checkpointRunning = new AtomicBoolean();
+    
+    // Shared by a change that is logged before it is applied, exclusive for a checkpoint - so a
+    // checkpoint never empties the log between a change being logged and it reaching the segments
+    private static final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    
+    // How long checkpoints and the startup load take
+    private static final OperationStats SAVE_DATA = ServerMetrics.operation("saveData");
+    private static final OperationStats LOAD_DATA = ServerMetrics.operation("loadData");
+    
+    // Hands out record IDs - unique across threads, restarts and nodes
+    private static RecordIdAllocator recordIds;
+    
+    // Checks and hashes passwords on a bounded pool of its own
+    private static CredentialVerifier credentials;
+    
+    // Logged-in sessions a reconnecting client can resume
+    private static SessionTable sessions;
     
     public static void main(String[] args) {
         Provider server = new Provider();
@@ -38,84 +95,363 @@ public class Provider {
     
     public void start() {
     	// Load existing data
+        long loadStart = System.nanoTime();
         loadData();
+        LOAD_DATA.recordSince(loadStart, false);
+        
+        // Metrics over JMX as library:type=ServerStats
+        try {
+            ServerMetrics.registerMBean();
+        } catch (JMException e) {
+            ServerLog.error("Error registering server stats with JMX: " + e.getMessage());
+        }
+        
+        // Durability mode: -Dlibrary.durability=sync|group|async, -Dlibrary.commitLatencyMillis=N
+        PersistenceScheduler.DurabilityMode mode =
+                PersistenceScheduler.DurabilityMode.parse(System.getProperty("library.durability", "group"));
+        long commitLatency = Long.getLong("library.commitLatencyMillis", 2);
+        persistence = new PersistenceScheduler(operationLog, mode, commitLatency);
+        ServerLog.info("Durability mode: " + mode + " (" + commitLatency + " ms)");
+        
+        // Record IDs: -Dlibrary.nodeId=0..1023, different for each server sharing the data
+        int nodeId = Integer.getInteger("library.nodeId", 0);
+        try {
+            recordIds = new RecordIdAllocator(Paths.get(ID_LEASE_FILE), nodeId);
+        } catch (IOException e) {
+            ServerLog.error("Error opening record ID lease: " + e.getMessage());
+            throw new IllegalStateException("Cannot start without a record ID allocator", e);
+        }
+        
+        // Password checks: -Dlibrary.verifierThreads=N, -Dlibrary.verifierQueue=N
+        int verifierThreads = Integer.getInteger("library.verifierThreads",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        credentials = new CredentialVerifier(verifierThreads, Integer.getInteger("library.verifierQueue", 64));
+        
+        // Session tokens: -Dlibrary.sessionIdleMinutes=N
+        long sessionIdleMinutes = Long.getLong("library.sessionIdleMinutes", 30);
+        sessions = new SessionTable(sessionIdleMinutes * 60 * 1000);
+        
+        // Execution mode: -Dlibrary.executor=virtual|pool, -Dlibrary.poolSize=N
+        ExecutionMode executionMode = ExecutionMode.parse(System.getProperty("library.executor", "virtual"));
+        ExecutorService sessionExecutor = createExecutor(executionMode);
+        
+        // Front end: -Dlibrary.frontend=blocking|nio, -Dlibrary.ioThreads=N
+        boolean nioFrontend = System.getProperty("library.frontend", "blocking").equalsIgnoreCase("nio");
         
         // Add shutdown hook to save data when server stops
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("\nServer shutting down... Saving data");
+            ServerLog.info("\nServer shutting down... Saving data");
+            try {
+                persistence.close();
+            } catch (IOException e) {
+                ServerLog.error("Error flushing operation log: " + e.getMessage());
+            }
             saveData();
+            ServerLog.flush(2000);
         }));
         
-    	System.out.println("===========================================");
-        System.out.println(" Library Management Server");
-        System.out.println(" Port: " + PORT);
-        System.out.println("===========================================");
+    	ServerLog.info("===========================================");
+        ServerLog.info(" Library Management Server");
+        ServerLog.info(" Port: " + PORT);
+        ServerLog.info(" Node ID: " + nodeId);
+        ServerLog.info(" Password verifiers: " + verifierThreads);
+        ServerLog.info(" Sessions: " + executionMode);
+        ServerLog.info(" Front end: " + (nioFrontend ? "NIO selector" : "blocking sockets"));
+        ServerLog.info(" Log level: " + ServerLog.getLevel());
+        ServerLog.info("===========================================");
         
         try {
+            if (nioFrontend) {
+                int ioThreads = Integer.getInteger("library.ioThreads", 2);
+                NioServer nioServer = new NioServer(PORT, ioThreads, sessionExecutor, users, records);
+                ServerLog.info("Server started with " + ioThreads + " I/O threads. Waiting for clients...");
+                nioServer.run();
+                return;
+            }
+            
             ServerSocket serverSocket = new ServerSocket(PORT);
-            System.out.println("Server started. Waiting for clients...");
+            ServerLog.info("Server started. Waiting for clients...");
             
             while (true) {
                 // Accept client connection
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected: " + clientSocket.getInetAddress().getHostAddress());
+                ServerLog.info("Client connected: " + clientSocket.getInetAddress().getHostAddress());
                 
-                // Create new thread for this client
-                ServerThread clientThread = new ServerThread(clientSocket, users, records);
-                clientThread.start();
+                // Run this client's session on the executor
+                sessionExecutor.execute(new ServerThread(clientSocket, users, records));
             }
             
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
-            e.printStackTrace();
+            ServerLog.error("Server error: " + e.getMessage(), e);
+        }
+    }
+    
+    private static ExecutorService createExecutor(ExecutionMode mode) {
+        switch (mode) {
+        case POOL:
+            int poolSize = Integer.getInteger("library.poolSize", 200);
+            return Executors.newFixedThreadPool(poolSize);
+        case VIRTUAL:
+        default:
+            return Executors.newVirtualThreadPerTaskExecutor();
         }
     }
     
     // Load users and records from files
     private void loadData() {
-        System.out.println("\n[LOADING DATA]");
+        ServerLog.info("\n[LOADING DATA]");
         
-        // Load users
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(USERS_FILE))) {
-            @SuppressWarnings("unchecked")
-            List<User> loadedUsers = (List<User>) ois.readObject();
-            users.addAll(loadedUsers);
-            System.out.println("Loaded " + users.size() + " users");
+        // Load users - a snapshot from before ModelCodec is read the old way and rewritten below
+        boolean legacyUsersFile = false;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(USERS_FILE))) {
+            List<User> loadedUsers;
+            if (ModelCodec.isJavaSerialized(in)) {
+                @SuppressWarnings("unchecked")
+                List<User> legacyUsers = (List<User>) new ObjectInputStream(in).readObject();
+                loadedUsers = legacyUsers;
+                legacyUsersFile = true;
+            } else {
+                loadedUsers = ModelCodec.readUsers(in);
+            }
+            for (User user : loadedUsers) {
+                users.register(user);
+            }
+            ServerLog.info("Loaded " + users.size() + " users");
         } catch (IOException | ClassNotFoundException e) {
-            System.out.println("No existing users file. Starting fresh.");
+            ServerLog.info("No existing users file. Starting fresh.");
         }
         
-        // Load records
+        // Open the record segments - the records stay in the mapped files
+        try {
+            records = RecordStore.open(Paths.get(RECORDS_DIRECTORY));
+            if (records.size() == 0 && Files.exists(Paths.get(RECORDS_FILE))) {
+                migrateRecordsFile();
+            }
+            ServerLog.info("Loaded " + records.size() + " records");
+        } catch (IOException e) {
+            ServerLog.error("Error opening record segments: " + e.getMessage());
+            throw new IllegalStateException("Cannot start without the record store", e);
+        }
+        
+        // Replay changes made since the snapshot was written
+        try {
+            operationLog = new OperationLog(Paths.get(LOG_FILE));
+            int replayed = operationLog.replay(Provider::applyOperation);
+            ServerLog.info("Replayed " + replayed + " logged operations");
+        } catch (IOException e) {
+            ServerLog.error("Error opening operation log: " + e.getMessage());
+            throw new IllegalStateException("Cannot start without an operation log", e);
+        }
+        
+        // Hash any password still stored as plain text - the snapshot below takes it off disk
+        int hashedPasswords = hashPlainTextPasswords();
+        
+        // Write migrated users out straight away - old format or plain text passwords
+        if (legacyUsersFile || hashedPasswords > 0) {
+            saveData();
+            if (legacyUsersFile) {
+                ServerLog.info("Converted " + USERS_FILE + " to the compact format");
+            }
+            if (hashedPasswords > 0) {
+                ServerLog.info("Hashed " + hashedPasswords + " plain text passwords");
+            }
+        }
+        
+        ServerLog.info("");
+    }
+    
+    // One-off upgrade of accounts that never logged in since hashing came in - spread over all cores
+    private int hashPlainTextPasswords() {
+        List<User> plainText = users.snapshot().stream()
+                .filter(user -> !PasswordHasher.isHashed(user.getPassword()))
+                .collect(Collectors.toList());
+        plainText.parallelStream().forEach(user -> user.setPassword(PasswordHasher.hash(user.getPassword())));
+        return plainText.size();
+    }
+    
+    // One-off move of an old records.dat snapshot into the record segments
+    private void migrateRecordsFile() {
         try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(RECORDS_FILE))) {
             @SuppressWarnings("unchecked")
             List<LibraryRecord> loadedRecords = (List<LibraryRecord>) ois.readObject();
-            records.addAll(loadedRecords);
-            System.out.println("Loaded " + records.size() + " records");
+            for (LibraryRecord record : loadedRecords) {
+                records.add(record);
+            }
         } catch (IOException | ClassNotFoundException e) {
-            System.out.println("No existing records file. Starting fresh.");
+            ServerLog.error("Error reading " + RECORDS_FILE + ": " + e.getMessage());
+            return;
+        }
+
+        // Segments must be on disk before the old file is moved aside
+        records.checkpoint();
+        try {
+            Files.move(Paths.get(RECORDS_FILE), Paths.get(RECORDS_FILE + ".migrated"),
+                    StandardCopyOption.REPLACE_EXISTING);
+            ServerLog.info("Migrated " + records.size() + " records from " + RECORDS_FILE);
+        } catch (IOException e) {
+            ServerLog.error("Error moving " + RECORDS_FILE + " aside: " + e.getMessage());
         }
-        
-        System.out.println();
     }
     
-    // Save users and records to files
-    public static void saveData() {
-        System.out.println("\n[SAVING DATA]");
-        
-        // Save users
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USERS_FILE))) {
-            oos.writeObject(new ArrayList<>(users));
-            System.out.println("Saved " + users.size() + " users");
+    // Re-apply a logged change - entries may already be in the snapshot, so this must be idempotent
+    private static void applyOperation(OperationLog.Entry entry) {
+        switch (entry.getType()) {
+        case USER_REGISTERED:
+            users.register(entry.getUser());
+            break;
+        case PASSWORD_UPDATED:
+            User user = users.findById(entry.getKey());
+            if (user != null) {
+                user.setPassword(entry.getValue());
+            }
+            break;
+        case RECORD_CREATED:
+            records.add(entry.getRecord());
+            break;
+        case RECORD_ASSIGNED:
+            records.update(entry.getKey(), record -> record.assignToLibrarian(entry.getValue()));
+            break;
+        }
+    }
+    
+    public static RecordIdAllocator recordIds() {
+        return recordIds;
+    }
+    
+    public static CredentialVerifier credentials() {
+        return credentials;
+    }
+    
+    public static SessionTable sessions() {
+        return sessions;
+    }
+    
+    // Held while a change is made visible and then logged, so no checkpoint can snapshot
+    // a change that is taken back because its log commit failed
+    public static Lock publishLock() {
+        return checkpointLock.readLock();
+    }
+    
+    // Durably record a single change - returns once the batch holding it is on disk,
+    // and throws if it could not be written, in which case the change must not be acknowledged
+    public static void logOperation(OperationLog.Entry entry) throws IOException {
+        logOperations(Collections.singletonList(entry));
+    }
+    
+    // Durably record a batch of changes with one commit
+    public static void logOperations(List<OperationLog.Entry> entries) throws IOException {
+        try {
+            persistence.commitAll(entries);
         } catch (IOException e) {
-            System.err.println("Error saving users: " + e.getMessage());
+            ServerLog.error("Error writing operation log: " + e.getMessage());
+            throw e;
         }
-        
-     // Save records
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(RECORDS_FILE))) {
-            oos.writeObject(new ArrayList<>(records));
-            System.out.println("Saved " + records.size() + " records");
+        checkpointIfLarge();
+    }
+    
+    // Durably record a change, then apply it - nothing is changed if the log write fails
+    public static void logThenApply(OperationLog.Entry entry, Runnable apply) throws IOException {
+        checkpointLock.readLock().lock();
+        try {
+            persistence.commit(entry);
+            apply.run();
         } catch (IOException e) {
-            System.err.println("Error saving records: " + e.getMessage());
+            ServerLog.error("Error writing operation log: " + e.getMessage());
+            throw e;
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        checkpointIfLarge();
+    }
+    
+    // The change itself is already durable, so trouble here is only logged
+    private static void checkpointIfLarge() {
+        try {
+            if (operationLog.size() > CHECKPOINT_LOG_BYTES) {
+                checkpointInBackground();
+            }
+        } catch (IOException e) {
+            ServerLog.error("Error reading operation log size: " + e.getMessage());
+        }
+    }
+    
+    // Fold an oversized log into new snapshots without holding up the client that noticed
+    private static void checkpointInBackground() {
+        if (checkpointRunning.compareAndSet(false, true)) {
+            Thread checkpoint = new Thread(() -> {
+                try {
+                    saveData();
+                } finally {
+                    checkpointRunning.set(false);
+                }
+            }, "checkpoint");
+            checkpoint.setDaemon(true);
+            checkpoint.start();
+        }
+    }
+    
+    // Checkpoint - write a full snapshot of users, flush the record segments, then empty the log
+    public static void saveData() {
+        long start = System.nanoTime();
+        boolean saved = false;
+        try {
+            saved = writeCheckpoint();
+        } finally {
+            SAVE_DATA.recordSince(start, !saved);
+        }
+    }
+    
+    // Returns false if any part of the checkpoint failed
+    private static boolean writeCheckpoint() {
+        ServerLog.info("\n[SAVING DATA]");
+        if (operationLog == null) {
+            ServerLog.error("Cannot checkpoint before the operation log is open");
+            return false;
+        }
+        
+        // Let changes already logged reach the segments first, and start no new ones until done
+        checkpointLock.writeLock().lock();
+        try {
+            // Hold off log writes so nothing lands in the log between snapshot and truncate
+            synchronized (operationLog) {
+                
+                // Save users
+                try {
+                    writeSnapshot(USERS_FILE, users.snapshot());
+                    ServerLog.info("Saved " + users.size() + " users");
+                } catch (IOException e) {
+                    ServerLog.error("Error saving users: " + e.getMessage());
+                    return false;
+                }
+                
+                // Save records - they are already in the segments, this makes them durable
+                records.checkpoint();
+                ServerLog.info("Saved " + records.size() + " records");
+                
+                // Users and records are on disk - the log is no longer needed
+                try {
+                    operationLog.truncate();
+                } catch (IOException e) {
+                    ServerLog.error("Error truncating operation log: " + e.getMessage());
+                    return false;
+                }
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+        return true;
+    }
+    
+    // Write to a temporary file first so a crash never leaves a half-written snapshot
+    private static void writeSnapshot(String fileName, List<User> data) throws IOException {
+        Path target = Paths.get(fileName);
+        Path temp = Paths.get(fileName + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+             BufferedOutputStream out = new BufferedOutputStream(fos)) {
+            ModelCodec.writeUsers(out, data);
+            out.flush();
+            fos.getFD().sync();
         }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 }
\ No newline at end of file
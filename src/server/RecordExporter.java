@@ -0,0 +1,296 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import models.LibraryRecord;
+
+/**
+ * RecordExporter - Streams library records out as CSV or JSON Lines
+ * Records are written one at a time from a RecordStore snapshot, so
+ * the file shows the store as it stood when the export started and no
+ * lock is held across the export. Records created since are left out,
+ * and a record assigned since is written with the status and librarian
+ * it had at the start. Only records changed while the export runs are
+ * copied, so memory use does not grow with the number of records.
+ *
+ * Exports run one at a time on a thread of their own (exportFileAsync),
+ * so a session thread - or an NIO worker - is never tied up by one.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class RecordExporter {
+
+    public enum Format {
+        CSV,
+        JSONL;
+
+        // Chosen by file name - .jsonl or .json gives JSON Lines, anything else CSV
+        public static Format forFileName(String fileName) {
+            String name = fileName.toLowerCase(Locale.ROOT);
+            return name.endsWith(".jsonl") || name.endsWith(".json") ? JSONL : CSV;
+        }
+    }
+
+    // Which records to export - unset fields match everything
+    public static final class Filter {
+        private LibraryRecord.RecordType type;
+        private LibraryRecord.Status status;
+        private LocalDate from;
+        private LocalDate to;
+        private String librarianId;
+
+        // Parse "type=book status=borrowed from=2026-01-01 to=2026-06-30 librarian=LIB001"
+        public static Filter parse(String text) {
+            Filter filter = new Filter();
+            if (text == null) {
+                return filter;
+            }
+            for (String part : text.trim().split("\\s+")) {
+                if (part.isEmpty()) {
+                    continue;
+                }
+                int equals = part.indexOf('=');
+                if (equals <= 0) {
+                    throw new IllegalArgumentException("Expected name=value, got " + part);
+                }
+                String name = part.substring(0, equals).toLowerCase(Locale.ROOT);
+                String value = part.substring(equals + 1);
+                switch (name) {
+                case "type":
+                    filter.type = parseType(value);
+                    break;
+                case "status":
+                    filter.status = parseStatus(value);
+                    break;
+                case "from":
+                    filter.from = parseDate(value);
+                    break;
+                case "to":
+                    filter.to = parseDate(value);
+                    break;
+                case "librarian":
+                    filter.librarianId = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown filter: " + name);
+                }
+            }
+            return filter;
+        }
+
+        private static LibraryRecord.RecordType parseType(String value) {
+            if (value.equalsIgnoreCase("book")) {
+                return LibraryRecord.RecordType.NEW_BOOK_ENTRY;
+            }
+            if (value.equalsIgnoreCase("request")) {
+                return LibraryRecord.RecordType.BORROW_REQUEST;
+            }
+            try {
+                return LibraryRecord.RecordType.valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid type: " + value);
+            }
+        }
+
+        private static LibraryRecord.Status parseStatus(String value) {
+            try {
+                return LibraryRecord.Status.valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid status: " + value);
+            }
+        }
+
+        private static LocalDate parseDate(String value) {
+            try {
+                return LocalDate.parse(value);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Dates must be yyyy-MM-dd: " + value);
+            }
+        }
+
+        public boolean matches(LibraryRecord.RecordType recordType, LibraryRecord.Status recordStatus,
+                LocalDateTime date, String assignedLibrarianId) {
+            return (type == null || type == recordType)
+                    && (status == null || status == recordStatus)
+                    && (from == null || !date.toLocalDate().isBefore(from))
+                    && (to == null || !date.toLocalDate().isAfter(to))
+                    && (librarianId == null || librarianId.equals(assignedLibrarianId));
+        }
+    }
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+    private static final String CSV_HEADER =
+            "recordId,type,creatorId,status,date,assignedLibrarianId,bookTitle,bookAuthor,bookISBN";
+
+    // Exports queue for this one thread rather than run on the session that asked
+    private static final ExecutorService EXPORTS = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "record-export");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Format format;
+    private final Filter filter;
+
+    public RecordExporter(Format format, Filter filter) {
+        this.format = format;
+        this.filter = filter;
+    }
+
+    // Export on the export thread - the snapshot is taken now, when the export was asked for
+    public CompletableFuture<Long> exportFileAsync(RecordStore store, Path file) {
+        RecordStore.Snapshot snapshot = store.openSnapshot();
+        return CompletableFuture.supplyAsync(() -> {
+            try (RecordStore.Snapshot records = snapshot) {
+                return exportFile(records, file);
+            } catch (IOException e) {
+                throw new CompletionException(new IOException("Export failed: " + e.getMessage(), e));
+            }
+        }, EXPORTS);
+    }
+
+    // Write to a temporary file first so a half-written export is never left under the real name
+    public long exportFile(RecordStore.Snapshot snapshot, Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            long written;
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                written = export(snapshot, out);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return written;
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Nothing more to do - the export already failed
+            }
+            throw e;
+        }
+    }
+
+    // Write every matching record - returns how many were written
+    public long export(RecordStore.Snapshot snapshot, Writer out) throws IOException {
+        if (format == Format.CSV) {
+            out.write(CSV_HEADER);
+            out.write('\n');
+        }
+
+        long written = 0;
+        String[] row = new String[9];
+        for (LibraryRecord record : snapshot.records()) {
+            // Status and librarian are the ones that change - take them as of the snapshot
+            RecordStore.RecordState state = snapshot.stateOf(record);
+            LibraryRecord.Status status = state.getStatus();
+            String librarianId = state.getAssignedLibrarianId();
+            LocalDateTime date = record.getDate();
+            if (!filter.matches(record.getRecordType(), status, date, librarianId)) {
+                continue;
+            }
+
+            row[0] = record.getRecordId();
+            row[1] = record.getRecordType().name();
+            row[2] = record.getCreatorId();
+            row[3] = status.name();
+            row[4] = date.format(DATE_FORMAT);
+            row[5] = librarianId;
+            row[6] = record.getBookTitle();
+            row[7] = record.getBookAuthor();
+            row[8] = record.getBookISBN();
+            if (format == Format.CSV) {
+                writeCsv(out, row);
+            } else {
+                writeJson(out, row);
+            }
+            written++;
+        }
+        out.flush();
+        return written;
+    }
+
+    private static void writeCsv(Writer out, String[] row) throws IOException {
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            String value = row[i] == null ? "" : row[i];
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0
+                    || value.indexOf('\r') >= 0) {
+                out.write('"');
+                out.write(value.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(value);
+            }
+        }
+        out.write('\n');
+    }
+
+    private static final String[] JSON_NAMES = CSV_HEADER.split(",");
+
+    private static void writeJson(Writer out, String[] row) throws IOException {
+        out.write('{');
+        boolean first = true;
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] == null) {
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write('"');
+            out.write(JSON_NAMES[i]);
+            out.write("\":\"");
+            writeJsonString(out, row[i]);
+            out.write('"');
+        }
+        out.write("}\n");
+    }
+
+    private static void writeJsonString(Writer out, String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                out.write("\\\"");
+                break;
+            case '\\':
+                out.write("\\\\");
+                break;
+            case '\n':
+                out.write("\\n");
+                break;
+            case '\r':
+                out.write("\\r");
+                break;
+            case '\t':
+                out.write("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.write(String.format("\\u%04x", (int) c));
+                } else {
+                    out.write(c);
+                }
+            }
+        }
+    }
+}
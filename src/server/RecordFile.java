@@ -0,0 +1,158 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import models.LibraryRecord;
+
+/**
+ * RecordFile - The record segments that back a RecordStore
+ * Segments are named records-0000.seg, records-0001.seg and so on. New
+ * records go into the last one; when it fills up the next is created.
+ * A record whose librarian change no longer fits in its own segment is
+ * copied into the last one as well, and read from there from then on.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class RecordFile implements Closeable {
+
+    private static final String PREFIX = "records-";
+    private static final String SUFFIX = ".seg";
+
+    private final Path directory;
+    private final List<RecordSegment> segments = new CopyOnWriteArrayList<>();
+
+    private RecordFile(Path directory) {
+        this.directory = directory;
+    }
+
+    // Open every segment in the directory, or start the first one
+    public static RecordFile open(Path directory) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+
+        RecordFile file = new RecordFile(directory);
+        for (Path path : paths) {
+            file.segments.add(RecordSegment.open(path));
+        }
+        if (file.segments.isEmpty()) {
+            file.segments.add(RecordSegment.open(file.segmentPath(0)));
+        }
+        return file;
+    }
+
+    // Visit every stored record in the order it was added. A record that was moved to a later
+    // segment is visited at its first place, from its newest copy on disk
+    public void forEach(Consumer<RecordView> action) {
+        Map<String, RecordView> moved = newestCopiesOfMovedRecords();
+        Set<String> visited = new HashSet<>();
+        for (RecordSegment segment : segments) {
+            int count = segment.slotCount();
+            for (int slot = 0; slot < count; slot++) {
+                if (segment.isDiscarded(slot)) {
+                    continue;
+                }
+                String recordId = segment.recordId(slot);
+                RecordView newest = moved.get(recordId);
+                if (newest == null) {
+                    action.accept(new RecordView(this, segment, slot, recordId));
+                } else if (visited.add(recordId)) {
+                    // A move after the last checkpoint leaves no copy on disk - the old slot is the record again
+                    newest.restore();
+                    action.accept(newest);
+                }
+            }
+        }
+    }
+
+    // Record ID -> the last slot holding that record, for every record with a moved slot
+    private Map<String, RecordView> newestCopiesOfMovedRecords() {
+        Map<String, RecordView> newest = new HashMap<>();
+        boolean scanning = false;
+        for (RecordSegment segment : segments) {
+            // Copies always come after the slot they were moved from
+            scanning = scanning || segment.hasMovedSlots();
+            if (!scanning) {
+                continue;
+            }
+            int count = segment.slotCount();
+            for (int slot = 0; slot < count; slot++) {
+                if (segment.isDiscarded(slot)) {
+                    continue;
+                }
+                String recordId = segment.recordId(slot);
+                if (segment.isMoved(slot) || newest.containsKey(recordId)) {
+                    newest.put(recordId, new RecordView(this, segment, slot, recordId));
+                }
+            }
+        }
+        return newest;
+    }
+
+    // Copy a record into the current segment, starting a new one if it is full
+    public synchronized RecordView append(LibraryRecord record) throws IOException {
+        RecordSegment current = segments.get(segments.size() - 1);
+        int slot = current.append(record);
+        if (slot < 0) {
+            current = RecordSegment.open(segmentPath(segments.size()));
+            segments.add(current);
+            slot = current.append(record);
+            if (slot < 0) {
+                throw new IOException("Record " + record.getRecordId() + " is too large for a segment");
+            }
+        }
+        return new RecordView(this, current, slot, record.getRecordId());
+    }
+
+    // Copy a batch of records in one go, in order - all of them or none
+    public synchronized List<RecordView> appendAll(List<LibraryRecord> batch) throws IOException {
+        List<RecordView> views = new ArrayList<>(batch.size());
+        try {
+            for (LibraryRecord record : batch) {
+                views.add(append(record));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (RecordView view : views) {
+                view.discard();
+            }
+            throw e;
+        }
+        return views;
+    }
+
+    // Make every segment durable up to this point
+    public void force() {
+        for (RecordSegment segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (RecordSegment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private Path segmentPath(int index) {
+        return directory.resolve(String.format("%s%04d%s", PREFIX, index, SUFFIX));
+    }
+}
@@ -0,0 +1,166 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RecordIdAllocator - Unique record IDs without locks
+ * An ID is a counter of (milliseconds << 12 | sequence) with the node ID in
+ * the low bits, written in base 36 after a prefix such as "REQ". Threads
+ * claim counter values with a compare-and-set, so two IDs are never the
+ * same even within one millisecond, and a burst simply runs ahead of the
+ * clock. The node ID (-Dlibrary.nodeId, 0-1023) keeps servers sharing a
+ * catalog apart.
+ *
+ * The counter never passes a lease time stored in the lease file. The
+ * lease is moved forward about every ten seconds, and a restarted server
+ * begins after it, so IDs stay unique even if the clock has gone back.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class RecordIdAllocator {
+
+    public static final int MAX_NODE_ID = 1023;
+
+    private static final long EPOCH_MILLIS = 1704067200000L; // 2024-01-01T00:00:00Z
+    private static final int SEQUENCE_BITS = 12;
+    private static final int NODE_BITS = 10;
+    private static final long LEASE_MILLIS = 10_000;
+
+    // A run of IDs claimed in one go, e.g. for a bulk import
+    public final class Block {
+        private final long first;
+        private final int size;
+
+        private Block(long first, int size) {
+            this.first = first;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public String id(String prefix, int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("ID " + index + " of a block of " + size);
+            }
+            return format(prefix, first + index);
+        }
+    }
+
+    private final Path leaseFile;
+    private final int nodeId;
+
+    // Counter value of the last ID handed out
+    private final AtomicLong last;
+
+    // Millisecond the counter must stay below until the lease is extended
+    private volatile long leaseMillis;
+
+    public RecordIdAllocator(Path leaseFile, int nodeId) throws IOException {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node ID must be between 0 and " + MAX_NODE_ID + ": " + nodeId);
+        }
+        this.leaseFile = leaseFile;
+        this.nodeId = nodeId;
+
+        // Everything handed out before the restart was below the stored lease
+        long start = Math.max(currentMillis(), readLease(leaseFile));
+        this.last = new AtomicLong(start << SEQUENCE_BITS);
+        writeLease(start + LEASE_MILLIS);
+        this.leaseMillis = start + LEASE_MILLIS;
+    }
+
+    // One new ID, e.g. "REQ" + "1A2B3C4D5E6F"
+    public String next(String prefix) {
+        return format(prefix, allocate(1));
+    }
+
+    // Claim count IDs at once - one compare-and-set however many there are
+    public Block reserve(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Cannot reserve " + count + " IDs");
+        }
+        return new Block(allocate(count), count);
+    }
+
+    // Claim count consecutive counter values and return the first
+    private long allocate(int count) {
+        while (true) {
+            long previous = last.get();
+            long first = Math.max(previous + 1, currentMillis() << SEQUENCE_BITS);
+            long end = first + count - 1;
+            if ((end >>> SEQUENCE_BITS) >= leaseMillis) {
+                extendLease(end >>> SEQUENCE_BITS);
+                continue;
+            }
+            if (last.compareAndSet(previous, end)) {
+                return first;
+            }
+        }
+    }
+
+    // Slow path - one thread writes the new lease while the others wait for it
+    private synchronized void extendLease(long neededMillis) {
+        if (neededMillis < leaseMillis) {
+            return;
+        }
+        long lease = Math.max(neededMillis + 1, currentMillis()) + LEASE_MILLIS;
+        try {
+            writeLease(lease);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot extend record ID lease", e);
+        }
+        leaseMillis = lease;
+    }
+
+    private String format(String prefix, long counter) {
+        return prefix + Long.toString((counter << NODE_BITS) | nodeId, 36).toUpperCase(Locale.ROOT);
+    }
+
+    private static long currentMillis() {
+        return System.currentTimeMillis() - EPOCH_MILLIS;
+    }
+
+    private static long readLease(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() != 16) {
+            throw new IOException("Damaged record ID lease file: " + path);
+        }
+        long lease = buffer.getLong();
+        if (buffer.getLong() != ~lease) {
+            throw new IOException("Damaged record ID lease file: " + path);
+        }
+        return lease;
+    }
+
+    // Write to a temporary file first so a crash never leaves a half-written lease
+    private void writeLease(long lease) throws IOException {
+        Path temp = leaseFile.resolveSibling(leaseFile.getFileName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(lease);
+        buffer.putLong(~lease);
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, leaseFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,373 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import models.LibraryRecord;
+
+/**
+ * RecordSegment - One memory-mapped file of fixed-size record slots
+ * Each record takes one slot holding its type, status, date and offsets
+ * into a string heap at the end of the file. Records are read straight
+ * from the mapping through RecordView, so nothing is deserialized at
+ * startup, and status or librarian changes are written into the slot.
+ *
+ * Layout: [header, 64 bytes][slot table, SLOT_CAPACITY x 48 bytes][string heap]
+ *
+ * The header's count and heap end are only written by force(), so after
+ * a crash the segment reopens at its last checkpoint and the operation
+ * log replays anything newer into the slots after it. A status or
+ * librarian change is only written here once its log entry is durable
+ * (see Provider.logThenApply), so a change that reached disk early is
+ * always replayed too.
+ *
+ * A librarian ID that no longer fits in the heap cannot be written into
+ * the slot; RecordFile then copies the record into the current segment
+ * and flags the old slot as moved.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class RecordSegment implements Closeable {
+
+    static final int SLOT_CAPACITY = 64 * 1024;
+    static final int HEAP_BYTES = 16 * 1024 * 1024;
+
+    private static final int MAGIC = 0x4C525347;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = 48;
+
+    // Heap kept back from new records so librarian changes always have room
+    private static final int UPDATE_RESERVE = 64 * 1024;
+
+    // Header fields
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SLOT_CAPACITY = 8;
+    private static final int H_HEAP_BYTES = 12;
+    private static final int H_COUNT = 16;
+    private static final int H_HEAP_END = 20;
+
+    // Slot fields - status and librarian are ints so they can be read and written atomically
+    private static final int S_STATUS = 0;
+    private static final int S_LIBRARIAN = 4;
+    private static final int S_EPOCH_SECOND = 8;
+    private static final int S_NANOS = 16;
+    private static final int S_RECORD_ID = 20;
+    private static final int S_CREATOR = 24;
+    private static final int S_TITLE = 28;
+    private static final int S_AUTHOR = 32;
+    private static final int S_ISBN = 36;
+    private static final int S_TYPE = 40;
+    private static final int S_FLAGS = 41;
+
+    private static final int NO_STRING = -1;
+    private static final byte FLAG_DISCARDED = 1;
+    private static final byte FLAG_MOVED = 2;
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final LibraryRecord.RecordType[] RECORD_TYPES = LibraryRecord.RecordType.values();
+    private static final LibraryRecord.Status[] STATUSES = LibraryRecord.Status.values();
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int heapStart;
+
+    // Next free slot and heap offset - guarded by this
+    private int count;
+    private int heapEnd;
+
+    // IDs already in this segment's heap, so each creator or librarian ID is stored once per segment -
+    // read back from the slots the first time a reopened segment stores an ID - guarded by this
+    private final ConcurrentHashMap<String, Integer> storedIds = new ConcurrentHashMap<>();
+    private boolean storedIdsLoaded;
+
+    private RecordSegment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.heapStart = HEADER_BYTES + SLOT_CAPACITY * SLOT_BYTES;
+    }
+
+    // Open a segment file, creating it if it does not exist
+    public static RecordSegment open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        boolean fresh = channel.size() == 0;
+        long length = HEADER_BYTES + (long) SLOT_CAPACITY * SLOT_BYTES + HEAP_BYTES;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        RecordSegment segment = new RecordSegment(path, channel, buffer);
+
+        if (fresh) {
+            buffer.putInt(H_MAGIC, MAGIC);
+            buffer.putInt(H_VERSION, VERSION);
+            buffer.putInt(H_SLOT_CAPACITY, SLOT_CAPACITY);
+            buffer.putInt(H_HEAP_BYTES, HEAP_BYTES);
+            segment.storedIdsLoaded = true;
+            segment.force();
+        } else if (buffer.getInt(H_MAGIC) != MAGIC || buffer.getInt(H_VERSION) != VERSION
+                || buffer.getInt(H_SLOT_CAPACITY) != SLOT_CAPACITY || buffer.getInt(H_HEAP_BYTES) != HEAP_BYTES) {
+            channel.close();
+            throw new IOException("Not a version " + VERSION + " record segment: " + path);
+        }
+
+        segment.count = buffer.getInt(H_COUNT);
+        segment.heapEnd = buffer.getInt(H_HEAP_END);
+        segment.dropUncheckpointedLibrarians();
+        return segment;
+    }
+
+    // Copy a record into the next free slot - returns -1 if the segment is full
+    public synchronized int append(LibraryRecord record) {
+        if (count == SLOT_CAPACITY) {
+            return -1;
+        }
+        byte[] recordId = encode(record.getRecordId());
+        byte[] title = encode(record.getBookTitle());
+        byte[] author = encode(record.getBookAuthor());
+        byte[] isbn = encode(record.getBookISBN());
+        int needed = heapBytes(recordId) + heapBytes(title) + heapBytes(author) + heapBytes(isbn)
+                + heapBytes(encode(record.getCreatorId())) + heapBytes(encode(record.getAssignedLibrarianId()));
+        if (heapEnd + needed > HEAP_BYTES - UPDATE_RESERVE) {
+            return -1;
+        }
+
+        int slot = count;
+        int base = slotOffset(slot);
+        LocalDateTime date = record.getDate();
+        buffer.putLong(base + S_EPOCH_SECOND, date.toEpochSecond(ZoneOffset.UTC));
+        buffer.putInt(base + S_NANOS, date.getNano());
+        buffer.putInt(base + S_RECORD_ID, putString(recordId));
+        buffer.putInt(base + S_CREATOR, idRef(record.getCreatorId()));
+        buffer.putInt(base + S_TITLE, putString(title));
+        buffer.putInt(base + S_AUTHOR, putString(author));
+        buffer.putInt(base + S_ISBN, putString(isbn));
+        buffer.put(base + S_TYPE, (byte) record.getRecordType().ordinal());
+        buffer.put(base + S_FLAGS, (byte) 0);
+        INT.setVolatile(buffer, base + S_LIBRARIAN, idRef(record.getAssignedLibrarianId()));
+        INT.setVolatile(buffer, base + S_STATUS, record.getStatus().ordinal());
+        count++;
+        return slot;
+    }
+
+    // Slots in use - the ones below this are valid
+    public synchronized int slotCount() {
+        return count;
+    }
+
+    // Mark a slot as unused, e.g. a record whose ID turned out to be taken - written through at once,
+    // since a checkpoint may already have made the record durable
+    public void discard(int slot) {
+        buffer.put(slotOffset(slot) + S_FLAGS, FLAG_DISCARDED);
+        buffer.force(slotOffset(slot) + S_FLAGS, 1);
+    }
+
+    public boolean isDiscarded(int slot) {
+        return (buffer.get(slotOffset(slot) + S_FLAGS) & FLAG_DISCARDED) != 0;
+    }
+
+    // The record was copied to a later segment - the old slot stays readable until the copy is checkpointed
+    public void markMoved(int slot) {
+        buffer.put(slotOffset(slot) + S_FLAGS, FLAG_MOVED);
+    }
+
+    public boolean isMoved(int slot) {
+        return (buffer.get(slotOffset(slot) + S_FLAGS) & FLAG_MOVED) != 0;
+    }
+
+    // The copy never reached disk, so this slot holds the record again
+    public void clearMoved(int slot) {
+        buffer.put(slotOffset(slot) + S_FLAGS, (byte) 0);
+    }
+
+    // True if any slot is flagged as moved
+    public synchronized boolean hasMovedSlots() {
+        for (int slot = 0; slot < count; slot++) {
+            if (isMoved(slot)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public LibraryRecord.RecordType recordType(int slot) {
+        return RECORD_TYPES[buffer.get(slotOffset(slot) + S_TYPE)];
+    }
+
+    public String recordId(int slot) {
+        return getString(buffer.getInt(slotOffset(slot) + S_RECORD_ID));
+    }
+
+    public LocalDateTime date(int slot) {
+        int base = slotOffset(slot);
+        return LocalDateTime.ofEpochSecond(buffer.getLong(base + S_EPOCH_SECOND), buffer.getInt(base + S_NANOS),
+                ZoneOffset.UTC);
+    }
+
+    public String creatorId(int slot) {
+        return getString(buffer.getInt(slotOffset(slot) + S_CREATOR));
+    }
+
+    public LibraryRecord.Status status(int slot) {
+        return STATUSES[(int) INT.getVolatile(buffer, slotOffset(slot) + S_STATUS)];
+    }
+
+    public void setStatus(int slot, LibraryRecord.Status status) {
+        INT.setVolatile(buffer, slotOffset(slot) + S_STATUS, status.ordinal());
+    }
+
+    public String librarianId(int slot) {
+        String librarianId = getString((int) INT.getVolatile(buffer, slotOffset(slot) + S_LIBRARIAN));
+        return librarianId == null ? "" : librarianId;
+    }
+
+    // Point the slot at the new ID - the string goes in the heap first, then the slot is switched over.
+    // Returns false, changing nothing, if the heap has no room left for the ID
+    public boolean setLibrarianId(int slot, String librarianId) {
+        int ref;
+        synchronized (this) {
+            if (!hasRoomFor(librarianId)) {
+                return false;
+            }
+            ref = idRef(librarianId);
+        }
+        INT.setVolatile(buffer, slotOffset(slot) + S_LIBRARIAN, ref);
+        return true;
+    }
+
+    public String bookTitle(int slot) {
+        return getString(buffer.getInt(slotOffset(slot) + S_TITLE));
+    }
+
+    public String bookAuthor(int slot) {
+        return getString(buffer.getInt(slotOffset(slot) + S_AUTHOR));
+    }
+
+    public String bookISBN(int slot) {
+        return getString(buffer.getInt(slotOffset(slot) + S_ISBN));
+    }
+
+    // Flush the mapping to disk, then record the new count and heap end in the header
+    public synchronized void force() {
+        buffer.force();
+        buffer.putInt(H_COUNT, count);
+        buffer.putInt(H_HEAP_END, heapEnd);
+        buffer.force(0, HEADER_BYTES);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // A librarian change after the last checkpoint may point past the checkpointed heap - clear it,
+    // roll the request back to REQUESTED with it, and let the log replay the whole assignment
+    private void dropUncheckpointedLibrarians() {
+        for (int slot = 0; slot < count; slot++) {
+            int base = slotOffset(slot);
+            if (buffer.getInt(base + S_LIBRARIAN) >= heapEnd) {
+                buffer.putInt(base + S_LIBRARIAN, NO_STRING);
+                if (recordType(slot) == LibraryRecord.RecordType.BORROW_REQUEST) {
+                    buffer.putInt(base + S_STATUS, LibraryRecord.Status.REQUESTED.ordinal());
+                }
+            }
+        }
+    }
+
+    // Whether an ID is already stored or fits in the heap - caller holds this segment's lock
+    private boolean hasRoomFor(String id) {
+        loadStoredIds();
+        return id == null || storedIds.containsKey(id) || heapEnd + heapBytes(encode(id)) <= HEAP_BYTES;
+    }
+
+    // Index the creator and librarian IDs a reopened segment already holds, each heap string read once -
+    // caller holds this segment's lock
+    private void loadStoredIds() {
+        if (storedIdsLoaded) {
+            return;
+        }
+        storedIdsLoaded = true;
+        Set<Integer> refs = new HashSet<>();
+        for (int slot = 0; slot < count; slot++) {
+            int base = slotOffset(slot);
+            refs.add(buffer.getInt(base + S_CREATOR));
+            refs.add((int) INT.getVolatile(buffer, base + S_LIBRARIAN));
+        }
+        for (int ref : refs) {
+            if (ref != NO_STRING && ref < heapEnd) {
+                storedIds.putIfAbsent(getString(ref), ref);
+            }
+        }
+    }
+
+    // Heap offset of an ID, storing it the first time it is seen - caller holds this segment's lock
+    private int idRef(String id) {
+        if (id == null) {
+            return NO_STRING;
+        }
+        loadStoredIds();
+        Integer ref = storedIds.get(id);
+        if (ref == null) {
+            byte[] bytes = encode(id);
+            if (heapEnd + heapBytes(bytes) > HEAP_BYTES) {
+                throw new IllegalStateException("Record segment heap is full: " + path);
+            }
+            ref = putString(bytes);
+            storedIds.put(id, ref);
+        }
+        return ref;
+    }
+
+    // Append a string to the heap - caller holds this segment's lock and has checked there is room
+    private int putString(byte[] bytes) {
+        if (bytes == null) {
+            return NO_STRING;
+        }
+        int ref = heapEnd;
+        buffer.putInt(heapStart + ref, bytes.length);
+        buffer.put(heapStart + ref + 4, bytes);
+        heapEnd += heapBytes(bytes);
+        return ref;
+    }
+
+    private String getString(int ref) {
+        if (ref == NO_STRING) {
+            return null;
+        }
+        int length = buffer.getInt(heapStart + ref);
+        byte[] bytes = new byte[length];
+        buffer.get(heapStart + ref + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int heapBytes(byte[] bytes) {
+        return bytes == null ? 0 : 4 + bytes.length;
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+}
@@ -0,0 +1,597 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import logging.ServerLog;
+
+import models.LibraryRecord;
+
+/**
+ * RecordStore - Library records in creation order with a primary-key index
+ * Records are kept in a lock-free ordered map for listings and in a concurrent
+ * recordId map, so finding or updating a record by ID is a point lookup.
+ * Listings read a snapshot view and never block writers.
+ * Secondary indexes on creatorId and assignedLibrarianId make per-user
+ * views cost O(results) rather than O(all records), and a queue of pending
+ * borrow requests lets librarians find open work in O(pending).
+ * Every view can also be read a page at a time through an opaque cursor
+ * naming the sequence number to continue from, so one request only ever
+ * touches one page of records.
+ * A store opened on a directory keeps the records themselves in mapped
+ * RecordSegment files; the maps here then hold small RecordView objects
+ * that read the record from the mapping when asked.
+ * Book entries are also indexed by title and author words for search,
+ * and by canonical ISBN for barcode lookups.
+ * A Snapshot shows the records as they stood when it was opened: it stops
+ * at the last sequence number issued then, and a record about to change
+ * has its old status and librarian copied aside for every open snapshot.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class RecordStore implements Closeable {
+
+    // Outcome of assigning a borrow request to a librarian
+    public enum AssignResult {
+        ASSIGNED,
+        NOT_FOUND,
+        NOT_BORROW_REQUEST,
+        ALREADY_PROCESSED
+    }
+
+    // Makes a change durable, then applies it - e.g. Provider.logThenApply
+    public interface Journal {
+        void commit(Runnable apply) throws IOException;
+    }
+
+    // Which records a paged listing walks
+    public enum View {
+        ALL,
+        CREATED_BY,
+        ASSIGNED_TO
+    }
+
+    // One page of a listing, with cursors for the pages either side of it
+    public static final class Page {
+        private final List<LibraryRecord> records;
+        private final String nextCursor;
+        private final String previousCursor;
+
+        Page(List<LibraryRecord> records, String nextCursor, String previousCursor) {
+            this.records = records;
+            this.nextCursor = nextCursor;
+            this.previousCursor = previousCursor;
+        }
+
+        public List<LibraryRecord> getRecords() {
+            return records;
+        }
+
+        // Null when this is the last page
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        // Null when this is the first page
+        public String getPreviousCursor() {
+            return previousCursor;
+        }
+
+        public boolean hasNext() {
+            return nextCursor != null;
+        }
+
+        public boolean hasPrevious() {
+            return previousCursor != null;
+        }
+    }
+
+    // Status and librarian of a record as one snapshot sees them
+    public static final class RecordState {
+        private final LibraryRecord.Status status;
+        private final String assignedLibrarianId;
+
+        RecordState(LibraryRecord.Status status, String assignedLibrarianId) {
+            this.status = status;
+            this.assignedLibrarianId = assignedLibrarianId;
+        }
+
+        public LibraryRecord.Status getStatus() {
+            return status;
+        }
+
+        public String getAssignedLibrarianId() {
+            return assignedLibrarianId;
+        }
+    }
+
+    // Point-in-time view of the store - close it when done so changes stop being copied for it
+    public static final class Snapshot implements AutoCloseable {
+        private final ConcurrentSkipListMap<Long, LibraryRecord> records;
+        private final Set<Snapshot> openSnapshots;
+        private final ConcurrentHashMap<String, RecordState> before = new ConcurrentHashMap<>();
+
+        // Until the bound is known every change is copied aside - the extra copies are never read
+        private volatile long upTo = Long.MAX_VALUE;
+
+        Snapshot(ConcurrentSkipListMap<Long, LibraryRecord> records, Set<Snapshot> openSnapshots) {
+            this.records = records;
+            this.openSnapshots = openSnapshots;
+        }
+
+        // Records created before the snapshot was opened, in creation order
+        public Collection<LibraryRecord> records() {
+            return Collections.unmodifiableCollection(records.headMap(upTo, true).values());
+        }
+
+        // The record's status and librarian when the snapshot was opened
+        public RecordState stateOf(LibraryRecord record) {
+            synchronized (record) {
+                RecordState state = before.get(record.getRecordId());
+                return state != null ? state : new RecordState(record.getStatus(), record.getAssignedLibrarianId());
+            }
+        }
+
+        // Called under the record's lock, just before it changes - the first copy is the one kept
+        void preserve(LibraryRecord record, long sequence) {
+            if (sequence <= upTo) {
+                before.putIfAbsent(record.getRecordId(),
+                        new RecordState(record.getStatus(), record.getAssignedLibrarianId()));
+            }
+        }
+
+        @Override
+        public void close() {
+            openSnapshots.remove(this);
+        }
+    }
+
+    // Records keyed by an increasing sequence number, i.e. in creation order
+    private final ConcurrentSkipListMap<Long, LibraryRecord> records = new ConcurrentSkipListMap<>();
+    private final AtomicLong lastSequence = new AtomicLong();
+    private final ConcurrentHashMap<String, LibraryRecord> recordsById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> sequencesById = new ConcurrentHashMap<>();
+
+    // Per-user indexes keyed by the same sequence number, so they page the same way
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<Long, LibraryRecord>> recordsByCreator =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<Long, LibraryRecord>> recordsByLibrarian =
+            new ConcurrentHashMap<>();
+
+    // Borrow requests still in REQUESTED, oldest first
+    private final ConcurrentLinkedQueue<LibraryRecord> pendingRequests = new ConcurrentLinkedQueue<>();
+
+    // Requests a librarian is assigning right now - claimed while the assignment is logged
+    private final Set<String> assigning = ConcurrentHashMap.newKeySet();
+
+    // Snapshots still being read - each gets a copy of a record's state before it changes
+    private final Set<Snapshot> openSnapshots = ConcurrentHashMap.newKeySet();
+
+    // Title and author words of book entries
+    private final CatalogIndex catalog = new CatalogIndex();
+
+    // Book entries by ISBN
+    private final IsbnIndex isbns = new IsbnIndex();
+
+    // Mapped segments holding the records, or null for a store that lives on the heap only
+    private final RecordFile storage;
+
+    public RecordStore() {
+        this(null);
+    }
+
+    private RecordStore(RecordFile storage) {
+        this.storage = storage;
+    }
+
+    // Open a store backed by the record segments in a directory and index what they hold
+    public static RecordStore open(Path directory) throws IOException {
+        RecordFile file = RecordFile.open(directory);
+        RecordStore store = new RecordStore(file);
+        file.forEach(view -> {
+            if (!store.index(view)) {
+                view.discard();
+            }
+        });
+        return store;
+    }
+
+    // Add a new record - returns false if its ID is already in use or it could not be stored
+    public boolean add(LibraryRecord record) {
+        if (recordsById.containsKey(record.getRecordId())) {
+            return false;
+        }
+        if (storage == null) {
+            return index(record);
+        }
+
+        RecordView view;
+        try {
+            view = storage.append(record);
+        } catch (IOException | IllegalStateException e) {
+            ServerLog.error("Error storing record " + record.getRecordId() + ": " + e.getMessage());
+            return false;
+        }
+        // Another client may have taken the ID since the check above
+        if (!index(view)) {
+            view.discard();
+            return false;
+        }
+        return true;
+    }
+
+    // Add a batch of new records with one trip to storage - returns the ones that were added
+    public List<LibraryRecord> addAll(List<LibraryRecord> batch) {
+        List<LibraryRecord> added = new ArrayList<>(batch.size());
+        if (storage == null) {
+            for (LibraryRecord record : batch) {
+                if (index(record)) {
+                    added.add(record);
+                }
+            }
+            return added;
+        }
+
+        List<LibraryRecord> fresh = new ArrayList<>(batch.size());
+        for (LibraryRecord record : batch) {
+            if (!recordsById.containsKey(record.getRecordId())) {
+                fresh.add(record);
+            }
+        }
+        List<RecordView> views;
+        try {
+            views = storage.appendAll(fresh);
+        } catch (IOException | IllegalStateException e) {
+            ServerLog.error("Error storing " + fresh.size() + " records: " + e.getMessage());
+            return added;
+        }
+        for (int i = 0; i < views.size(); i++) {
+            if (index(views.get(i))) {
+                added.add(fresh.get(i));
+            } else {
+                views.get(i).discard();
+            }
+        }
+        return added;
+    }
+
+    // Make stored records durable - part of a checkpoint
+    public void checkpoint() {
+        if (storage != null) {
+            storage.force();
+        }
+    }
+
+    // Release the segment files - the store must not be used afterwards
+    @Override
+    public void close() throws IOException {
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
+    // The ID is claimed with its sequence number before the record is published, so whoever
+    // finds the record by ID - e.g. an assignment reindexing it - also finds its sequence
+    private boolean index(LibraryRecord record) {
+        long sequence = lastSequence.incrementAndGet();
+        if (sequencesById.putIfAbsent(record.getRecordId(), sequence) != null) {
+            return false;
+        }
+        recordsById.put(record.getRecordId(), record);
+        records.put(sequence, record);
+        addToIndex(recordsByCreator, record.getCreatorId(), sequence, record);
+        synchronized (record) {
+            addToIndex(recordsByLibrarian, record.getAssignedLibrarianId(), sequence, record);
+            if (isPending(record)) {
+                pendingRequests.add(record);
+            }
+        }
+        catalog.add(record);
+        isbns.add(record);
+        return true;
+    }
+
+    public LibraryRecord get(String recordId) {
+        return recordId == null ? null : recordsById.get(recordId);
+    }
+
+    public boolean contains(String recordId) {
+        return get(recordId) != null;
+    }
+
+    // Apply a change to one record - returns false if there is no such record
+    public boolean update(String recordId, Consumer<LibraryRecord> change) {
+        LibraryRecord record = get(recordId);
+        if (record == null) {
+            return false;
+        }
+        synchronized (record) {
+            preserveForSnapshots(record);
+            String previousLibrarian = record.getAssignedLibrarianId();
+            boolean wasPending = isPending(record);
+            change.accept(record);
+            reindexLibrarian(record, previousLibrarian);
+            if (wasPending && !isPending(record)) {
+                pendingRequests.remove(record);
+            }
+        }
+        return true;
+    }
+
+    // Claim, check, log, then assign - the claim means two librarians cannot both log the same
+    // request, and nothing changes unless the journal could make the assignment durable
+    public AssignResult assign(String recordId, String librarianId, Journal journal) throws IOException {
+        LibraryRecord record = get(recordId);
+        if (record == null) {
+            return AssignResult.NOT_FOUND;
+        }
+        if (record.getRecordType() != LibraryRecord.RecordType.BORROW_REQUEST) {
+            return AssignResult.NOT_BORROW_REQUEST;
+        }
+        if (!assigning.add(recordId)) {
+            return AssignResult.ALREADY_PROCESSED;
+        }
+        try {
+            if (record.getStatus() != LibraryRecord.Status.REQUESTED) {
+                return AssignResult.ALREADY_PROCESSED;
+            }
+            journal.commit(() -> {
+                synchronized (record) {
+                    preserveForSnapshots(record);
+                    String previousLibrarian = record.getAssignedLibrarianId();
+                    record.assignToLibrarian(librarianId);
+                    reindexLibrarian(record, previousLibrarian);
+                    pendingRequests.remove(record);
+                }
+            });
+            return AssignResult.ASSIGNED;
+        } finally {
+            assigning.remove(recordId);
+        }
+    }
+
+    // Take back a record whose creation could not be logged - it leaves every index and its slot is freed
+    public void remove(String recordId) {
+        LibraryRecord record = get(recordId);
+        Long sequence = recordId == null ? null : sequencesById.get(recordId);
+        if (record == null || sequence == null || !recordsById.remove(recordId, record)) {
+            return;
+        }
+        records.remove(sequence);
+        removeFromIndex(recordsByCreator, record.getCreatorId(), sequence);
+        synchronized (record) {
+            removeFromIndex(recordsByLibrarian, record.getAssignedLibrarianId(), sequence);
+            if (isPending(record)) {
+                pendingRequests.remove(record);
+            }
+        }
+        catalog.remove(record);
+        isbns.remove(record);
+        sequencesById.remove(recordId, sequence);
+        if (record instanceof RecordView) {
+            ((RecordView) record).discard();
+        }
+    }
+
+    // Records created by one user, in creation order
+    public List<LibraryRecord> findByCreator(String creatorId) {
+        return copyOfIndex(recordsByCreator, creatorId);
+    }
+
+    // Records assigned to one librarian, in creation order
+    public List<LibraryRecord> findByLibrarian(String librarianId) {
+        return copyOfIndex(recordsByLibrarian, librarianId);
+    }
+
+    // Book entries matching a title/author query, best match first
+    public List<LibraryRecord> searchCatalog(String query, int limit) {
+        return resolve(catalog.search(query, limit));
+    }
+
+    // Copies of a book, looked up by ISBN-10 or ISBN-13 in any format
+    public List<LibraryRecord> findByIsbn(String isbn) {
+        return resolve(isbns.find(isbn));
+    }
+
+    // Books whose ISBN starts with a prefix, e.g. a publisher's, in ISBN order
+    public List<LibraryRecord> findByIsbnPrefix(String prefix, int limit) {
+        return resolve(isbns.findByPrefix(prefix, limit));
+    }
+
+    // Borrow requests waiting for a librarian, oldest first
+    public List<LibraryRecord> findPendingRequests() {
+        List<LibraryRecord> pending = new ArrayList<>();
+        for (LibraryRecord record : pendingRequests) {
+            // A request being assigned right now may still be in the queue for a moment
+            if (record.getStatus() == LibraryRecord.Status.REQUESTED) {
+                pending.add(record);
+            }
+        }
+        return pending;
+    }
+
+    public int size() {
+        return recordsById.size();
+    }
+
+    // One page of a view - a null cursor starts at the beginning, and a cursor this
+    // store did not hand out is treated the same way
+    public Page page(View view, String ownerId, String cursor, int pageSize) {
+        NavigableMap<Long, LibraryRecord> source = viewOf(view, ownerId);
+        int size = Math.max(1, pageSize);
+        List<LibraryRecord> page = new ArrayList<>(Math.min(size, 64));
+
+        long position = 0;
+        boolean backward = false;
+        if (cursor != null) {
+            try {
+                String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                backward = decoded.charAt(0) == 'B';
+                position = Long.parseLong(decoded.substring(1));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                position = 0;
+                backward = false;
+            }
+        }
+
+        // Walk forward after the cursor, or back from it, taking at most one page
+        NavigableMap<Long, LibraryRecord> range = backward
+                ? source.headMap(position, false).descendingMap()
+                : source.tailMap(position, false);
+        List<Long> sequences = new ArrayList<>(Math.min(size, 64));
+        for (Map.Entry<Long, LibraryRecord> entry : range.entrySet()) {
+            if (page.size() == size) {
+                break;
+            }
+            sequences.add(entry.getKey());
+            page.add(entry.getValue());
+        }
+        if (backward) {
+            Collections.reverse(sequences);
+            Collections.reverse(page);
+        }
+
+        if (page.isEmpty()) {
+            return new Page(page, null, null);
+        }
+        long first = sequences.get(0);
+        long last = sequences.get(sequences.size() - 1);
+        String next = source.higherKey(last) != null ? encodeCursor('F', last) : null;
+        String previous = source.lowerKey(first) != null ? encodeCursor('B', first) : null;
+        return new Page(Collections.unmodifiableList(page), next, previous);
+    }
+
+    // Cursor for a page that starts at the given record - null if there is no such record
+    public String cursorAt(String recordId) {
+        Long sequence = recordId == null ? null : sequencesById.get(recordId);
+        return sequence == null ? null : encodeCursor('F', sequence - 1);
+    }
+
+    // Records created up to when this was called, in creation order - a live view rather than a copy,
+    // so iterating takes no locks but sees changes made to those records since
+    public Collection<LibraryRecord> snapshotView() {
+        return Collections.unmodifiableCollection(records.headMap(lastSequence.get(), true).values());
+    }
+
+    // Copy of all records in creation order, used when writing a snapshot
+    public List<LibraryRecord> snapshot() {
+        return new ArrayList<>(snapshotView());
+    }
+
+    // Open a point-in-time view of every record - registered before its bound is read,
+    // so no change made after the bound can slip past it uncopied
+    public Snapshot openSnapshot() {
+        Snapshot snapshot = new Snapshot(records, openSnapshots);
+        openSnapshots.add(snapshot);
+        snapshot.upTo = lastSequence.get();
+        return snapshot;
+    }
+
+    // Called under the record's lock, before it changes
+    private void preserveForSnapshots(LibraryRecord record) {
+        if (openSnapshots.isEmpty()) {
+            return;
+        }
+        Long sequence = sequencesById.get(record.getRecordId());
+        if (sequence == null) {
+            return;
+        }
+        for (Snapshot snapshot : openSnapshots) {
+            snapshot.preserve(record, sequence);
+        }
+    }
+
+    private NavigableMap<Long, LibraryRecord> viewOf(View view, String ownerId) {
+        NavigableMap<Long, LibraryRecord> source;
+        switch (view) {
+        case CREATED_BY:
+            source = ownerId == null ? null : recordsByCreator.get(ownerId);
+            break;
+        case ASSIGNED_TO:
+            source = ownerId == null ? null : recordsByLibrarian.get(ownerId);
+            break;
+        default:
+            source = records;
+        }
+        return source == null ? Collections.emptyNavigableMap() : source;
+    }
+
+    // 'F' continues after the sequence number, 'B' goes back from before it
+    private static String encodeCursor(char direction, long sequence) {
+        byte[] raw = (direction + Long.toString(sequence)).getBytes(StandardCharsets.UTF_8);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+    }
+
+    private List<LibraryRecord> resolve(List<String> recordIds) {
+        List<LibraryRecord> matches = new ArrayList<>(recordIds.size());
+        for (String recordId : recordIds) {
+            LibraryRecord record = get(recordId);
+            if (record != null) {
+                matches.add(record);
+            }
+        }
+        return matches;
+    }
+
+    private static boolean isPending(LibraryRecord record) {
+        return record.getRecordType() == LibraryRecord.RecordType.BORROW_REQUEST
+                && record.getStatus() == LibraryRecord.Status.REQUESTED;
+    }
+
+    // Keep the librarian index in step - caller holds the record's lock
+    private void reindexLibrarian(LibraryRecord record, String previousLibrarian) {
+        String currentLibrarian = record.getAssignedLibrarianId();
+        if (currentLibrarian.equals(previousLibrarian)) {
+            return;
+        }
+        long sequence = sequencesById.get(record.getRecordId());
+        ConcurrentSkipListMap<Long, LibraryRecord> previous =
+                previousLibrarian.isEmpty() ? null : recordsByLibrarian.get(previousLibrarian);
+        if (previous != null) {
+            previous.remove(sequence);
+        }
+        addToIndex(recordsByLibrarian, currentLibrarian, sequence, record);
+    }
+
+    private static void addToIndex(ConcurrentHashMap<String, ConcurrentSkipListMap<Long, LibraryRecord>> index,
+            String key, long sequence, LibraryRecord record) {
+        // Unassigned requests carry an empty librarian ID - nothing to index
+        if (key == null || key.isEmpty()) {
+            return;
+        }
+        index.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>()).put(sequence, record);
+    }
+
+    private static void removeFromIndex(ConcurrentHashMap<String, ConcurrentSkipListMap<Long, LibraryRecord>> index,
+            String key, long sequence) {
+        ConcurrentSkipListMap<Long, LibraryRecord> matches = key == null ? null : index.get(key);
+        if (matches != null) {
+            matches.remove(sequence);
+        }
+    }
+
+    private static List<LibraryRecord> copyOfIndex(
+            ConcurrentHashMap<String, ConcurrentSkipListMap<Long, LibraryRecord>> index, String key) {
+        ConcurrentSkipListMap<Long, LibraryRecord> matches = key == null ? null : index.get(key);
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(matches.values());
+    }
+}
@@ -0,0 +1,108 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+
+import models.LibraryRecord;
+
+/**
+ * RecordView - A LibraryRecord read straight out of a RecordSegment slot
+ * The view holds only where the record lives; every getter reads the
+ * mapped file and every change is written back into the slot. If a
+ * librarian change does not fit in the segment any more, the record is
+ * copied into the current segment and the view follows it there. It is
+ * serialized as a plain LibraryRecord, since the mapping cannot travel.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public final class RecordView extends LibraryRecord {
+    private static final long serialVersionUID = 1L;
+
+    // A segment and a slot in it, switched together when the record moves
+    private static final class Location {
+        final RecordSegment segment;
+        final int slot;
+
+        Location(RecordSegment segment, int slot) {
+            this.segment = segment;
+            this.slot = slot;
+        }
+    }
+
+    private final transient RecordFile file;
+    private transient volatile Location location;
+
+    // Kept on the view because the ID index holds this same string anyway
+    private final String recordId;
+
+    RecordView(RecordFile file, RecordSegment segment, int slot, String recordId) {
+        this.file = file;
+        this.location = new Location(segment, slot);
+        this.recordId = recordId;
+    }
+
+    @Override
+    public RecordType getRecordType() { Location at = location; return at.segment.recordType(at.slot); }
+    @Override
+    public String getRecordId() { return recordId; }
+    @Override
+    public LocalDateTime getDate() { Location at = location; return at.segment.date(at.slot); }
+    @Override
+    public String getCreatorId() { Location at = location; return at.segment.creatorId(at.slot); }
+    @Override
+    public Status getStatus() { Location at = location; return at.segment.status(at.slot); }
+    @Override
+    public String getAssignedLibrarianId() { Location at = location; return at.segment.librarianId(at.slot); }
+    @Override
+    public String getBookTitle() { Location at = location; return at.segment.bookTitle(at.slot); }
+    @Override
+    public String getBookAuthor() { Location at = location; return at.segment.bookAuthor(at.slot); }
+    @Override
+    public String getBookISBN() { Location at = location; return at.segment.bookISBN(at.slot); }
+
+    @Override
+    public void setStatus(Status status) {
+        Location at = location;
+        at.segment.setStatus(at.slot, status);
+    }
+
+    // Callers hold the record's lock, so only one change at a time can move it
+    @Override
+    public void setAssignedLibrarianId(String librarianId) {
+        Location at = location;
+        if (at.segment.setLibrarianId(at.slot, librarianId)) {
+            return;
+        }
+        // No room left for the ID in this segment's heap - carry on in a copy in the current segment
+        LibraryRecord copy = new LibraryRecord(getRecordType(), recordId, getDate(), getCreatorId(), getStatus(),
+                librarianId, getBookTitle(), getBookAuthor(), getBookISBN());
+        try {
+            location = file.append(copy).location;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not move record " + recordId, e);
+        }
+        at.segment.markMoved(at.slot);
+    }
+
+    // Give the slot back, e.g. when its record ID turned out to be taken
+    void discard() {
+        Location at = location;
+        at.segment.discard(at.slot);
+    }
+
+    // Used again after a move whose copy never reached disk
+    void restore() {
+        Location at = location;
+        if (at.segment.isMoved(at.slot)) {
+            at.segment.clearMoved(at.slot);
+        }
+    }
+
+    // Serialize a detached copy
+    private Object writeReplace() {
+        return new LibraryRecord(getRecordType(), recordId, getDate(), getCreatorId(), getStatus(),
+                getAssignedLibrarianId(), getBookTitle(), getBookAuthor(), getBookISBN());
+    }
+}
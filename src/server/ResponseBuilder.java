@@ -0,0 +1,47 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import protocol.Frame;
+import protocol.Opcode;
+
+/**
+ * ResponseBuilder - Collects everything the server says in one interaction
+ * Lines are buffered until the server needs input (or the session ends),
+ * then sent as a single multi-line frame - one write and one flush per
+ * screen instead of one per line.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class ResponseBuilder {
+
+    private List<String> lines = new ArrayList<>();
+    private boolean prompting = false;
+
+    // Add a line for the client to display
+    public ResponseBuilder line(String text) {
+        lines.add(text);
+        return this;
+    }
+
+    // End the screen with a line that asks for input
+    public ResponseBuilder prompt(String text) {
+        lines.add(text);
+        prompting = true;
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return lines.isEmpty();
+    }
+
+    // Turn the collected lines into one frame and start a new screen
+    public Frame build() {
+        Frame frame = new Frame(prompting ? Opcode.PROMPT : Opcode.MESSAGE, lines);
+        lines = new ArrayList<>();
+        prompting = false;
+        return frame;
+    }
+}
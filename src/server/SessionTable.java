@@ -0,0 +1,96 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SessionTable - Login sessions that outlive a single connection
+ * A successful login is given a random token. A client that reconnects
+ * with the token is logged straight back in, with no password check. A
+ * token is dropped when its user logs out, or once it has been idle for
+ * longer than the timeout. Tokens live in memory only and do not survive
+ * a server restart.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class SessionTable {
+
+    private static final int TOKEN_BYTES = 24;
+
+    // Expired sessions are swept out after this many are issued
+    private static final int SWEEP_INTERVAL = 256;
+
+    private static final class Session {
+        final String userId;
+        volatile long lastUsed;
+
+        Session(String userId, long lastUsed) {
+            this.userId = userId;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final long idleMillis;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger issued = new AtomicInteger();
+    private final SecureRandom random = new SecureRandom();
+
+    public SessionTable(long idleMillis) {
+        this.idleMillis = idleMillis;
+    }
+
+    // Start a session for a user who has just logged in
+    public String issue(String userId) {
+        byte[] raw = new byte[TOKEN_BYTES];
+        random.nextBytes(raw);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+        long now = System.currentTimeMillis();
+        sessions.put(token, new Session(userId, now));
+
+        if (issued.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            sessions.values().removeIf(session -> now - session.lastUsed > idleMillis);
+        }
+        return token;
+    }
+
+    // The user ID of a live session, or null if the token is unknown or has gone idle
+    public String resume(String token) {
+        Session session = token == null ? null : sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - session.lastUsed > idleMillis) {
+            sessions.remove(token, session);
+            return null;
+        }
+        session.lastUsed = now;
+        return session.userId;
+    }
+
+    // Note activity so an active session does not expire
+    public void touch(String token) {
+        Session session = token == null ? null : sessions.get(token);
+        if (session != null) {
+            session.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    public void revoke(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    // End every session of a user except one, e.g. after a password change
+    public void revokeAll(String userId, String keepToken) {
+        sessions.entrySet().removeIf(entry -> entry.getValue().userId.equals(userId) && !entry.getKey().equals(keepToken));
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+}
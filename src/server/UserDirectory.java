@@ -0,0 +1,77 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import models.User;
+
+/**
+ * UserDirectory - Registered users indexed by ID and by email
+ * Lookups are hash-based and lock-free, so logins and uniqueness checks
+ * cost O(1) and never queue behind each other.
+ *
+ * @author Mark Bowman
+ * @student G00389705
+ */
+public class UserDirectory {
+
+    // Outcome of an attempt to register a user
+    public enum RegistrationResult {
+        REGISTERED,
+        ID_TAKEN,
+        EMAIL_TAKEN
+    }
+
+    private final ConcurrentHashMap<String, User> usersById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, User> usersByEmail = new ConcurrentHashMap<>();
+
+    // Atomically claim both the ID and the email - a lost race on either leaves nothing behind
+    public RegistrationResult register(User user) {
+        if (usersById.putIfAbsent(user.getId(), user) != null) {
+            return RegistrationResult.ID_TAKEN;
+        }
+        if (usersByEmail.putIfAbsent(normalizeEmail(user.getEmail()), user) != null) {
+            usersById.remove(user.getId(), user);
+            return RegistrationResult.EMAIL_TAKEN;
+        }
+        return RegistrationResult.REGISTERED;
+    }
+
+    // Take back a registration that could not be saved - only if it is still this user's
+    public void remove(User user) {
+        usersById.remove(user.getId(), user);
+        usersByEmail.remove(normalizeEmail(user.getEmail()), user);
+    }
+
+    public User findById(String userId) {
+        return userId == null ? null : usersById.get(userId);
+    }
+
+    public User findByEmail(String email) {
+        return email == null ? null : usersByEmail.get(normalizeEmail(email));
+    }
+
+    public boolean isIdTaken(String userId) {
+        return findById(userId) != null;
+    }
+
+    public boolean isEmailTaken(String email) {
+        return findByEmail(email) != null;
+    }
+
+    public int size() {
+        return usersById.size();
+    }
+
+    // Copy of all users, used when writing a snapshot
+    public List<User> snapshot() {
+        return new ArrayList<>(usersById.values());
+    }
+
+    // Emails are matched case-insensitively, ignoring stray whitespace
+    static String normalizeEmail(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+}